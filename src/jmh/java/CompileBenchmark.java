@@ -0,0 +1,63 @@
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compiles patterns of growing size and nesting depth. {@link Compiler} is used directly, so the {@link PatternCache}
+ * behind {@link Pattern#compile} does not turn every iteration into a lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompileBenchmark {
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    @Param({"1", "8", "32"})
+    public int depth;
+
+    private String regex;
+
+    @Setup
+    public void setUp() {
+        StringBuilder alternatives = new StringBuilder();
+        for (int i = 0; i < size / 10; i++) {
+            alternatives.append(i == 0 ? "" : "|").append("w").append(i).append("[a-z]+\\d?");
+        }
+        StringBuilder nested = new StringBuilder(alternatives.length() == 0 ? "x" : alternatives);
+        for (int i = 0; i < depth; i++) {
+            nested.insert(0, "(").append(")*y");
+        }
+        regex = nested.toString();
+    }
+
+    @Benchmark
+    public Matcher regulus() {
+        return new Compiler().compile(regex);
+    }
+
+    @Benchmark
+    public Matcher regulusFullDfa() {
+        Options options = new Options();
+        options.setFullDfa(true);
+        return new Compiler(options).compile(regex);
+    }
+
+    @Benchmark
+    public java.util.regex.Pattern jdk() {
+        return java.util.regex.Pattern.compile(regex);
+    }
+}
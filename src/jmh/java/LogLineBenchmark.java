@@ -0,0 +1,78 @@
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Searches a batch of access and application log lines with a few typical rules, most of which do not match most
+ * lines. One operation searches every line with every rule.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogLineBenchmark {
+    private static final String[] RULES = {
+            "\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}",
+            "\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}",
+            "(GET|POST|PUT|DELETE) /api/v\\d+/\\w+",
+            "status=5\\d\\d",
+            "timeout",
+            "user=(\\w+)",
+            "[A-Z][a-z]+Exception",
+            "ERROR|FATAL",
+    };
+
+    private static final String[] LINES = {
+            "127.0.0.1 - - [10/Oct/2024:13:55:36 +0000] \"GET /api/v2/users HTTP/1.1\" 200 2326",
+            "2024-10-10T13:55:36 INFO  request finished status=200 duration=12ms user=alice",
+            "2024-10-10T13:55:37 WARN  slow query took 1234ms on table orders",
+            "2024-10-10T13:55:38 ERROR upstream timeout after 30000ms status=504 user=bob",
+            "10.0.12.7 - - [10/Oct/2024:13:55:39 +0000] \"POST /api/v1/orders HTTP/1.1\" 201 512",
+            "2024-10-10T13:55:40 DEBUG cache hit ratio 0.93 for region eu-west-1",
+            "java.lang.IllegalStateException: connection pool exhausted",
+            "2024-10-10T13:55:41 INFO  scheduled job cleanup completed in 88ms",
+    };
+
+    private Matcher[] matchers;
+    private java.util.regex.Pattern[] patterns;
+
+    @Setup
+    public void setUp() {
+        matchers = new Matcher[RULES.length];
+        patterns = new java.util.regex.Pattern[RULES.length];
+        for (int i = 0; i < RULES.length; i++) {
+            matchers[i] = new Compiler().compile(RULES[i]);
+            patterns[i] = java.util.regex.Pattern.compile(RULES[i]);
+        }
+    }
+
+    @Benchmark
+    public void regulus(Blackhole blackhole) {
+        for (String line : LINES) {
+            for (Matcher matcher : matchers) {
+                blackhole.consume(matcher.find(line));
+            }
+        }
+    }
+
+    @Benchmark
+    public void jdk(Blackhole blackhole) {
+        for (String line : LINES) {
+            for (java.util.regex.Pattern pattern : patterns) {
+                blackhole.consume(pattern.matcher(line).find());
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Matcher#test} over inputs of growing length, once through every engine and once through
+ * {@code java.util.regex}. Half of the inputs match.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchBenchmark {
+    private static final String REGEX = "[a-z][a-z0-9-]*\\.(log|txt)";
+
+    @Param({"16", "256", "4096", "65536"})
+    public int length;
+
+    private String[] inputs;
+    private int next;
+
+    private Matcher nfa;
+    private Matcher lazyDfa;
+    private Matcher denseDfa;
+    private Matcher bytecode;
+    private java.util.regex.Pattern jdk;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        inputs = new String[16];
+        for (int i = 0; i < inputs.length; i++) {
+            StringBuilder input = new StringBuilder();
+            while (input.length() < length - 4) {
+                input.append((char) ('a' + random.nextInt(26)));
+                if (random.nextInt(8) == 0) {
+                    input.append('-');
+                }
+            }
+            input.append(i % 2 == 0 ? "x.log" : "x.bin");
+            inputs[i] = input.toString();
+        }
+
+        Options options = new Options();
+        options.setDfaCacheSize(0);
+        nfa = new Compiler(options).compile(REGEX);
+        lazyDfa = new Compiler().compile(REGEX);
+        options = new Options();
+        options.setFullDfa(true);
+        denseDfa = new Compiler(options).compile(REGEX);
+        options = new Options();
+        options.setBytecodeThreshold(1);
+        bytecode = new Compiler(options).compile(REGEX);
+        jdk = java.util.regex.Pattern.compile(REGEX);
+    }
+
+    private String nextInput() {
+        return inputs[next++ & (inputs.length - 1)];
+    }
+
+    @Benchmark
+    public boolean nfa() {
+        return nfa.test(nextInput());
+    }
+
+    @Benchmark
+    public boolean lazyDfa() {
+        return lazyDfa.test(nextInput());
+    }
+
+    @Benchmark
+    public boolean denseDfa() {
+        return denseDfa.test(nextInput());
+    }
+
+    @Benchmark
+    public boolean bytecode() {
+        return bytecode.test(nextInput());
+    }
+
+    @Benchmark
+    public boolean jdk() {
+        return jdk.matcher(nextInput()).matches();
+    }
+}
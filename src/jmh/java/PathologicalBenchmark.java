@@ -0,0 +1,64 @@
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Patterns which make backtracking engines take exponential time: {@code (a*)*b} against a run of {@code a} without
+ * {@code b}, and {@code a?{n}a{n}} against {@code a{n}}. Keep {@code n} small for the JDK baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathologicalBenchmark {
+    @Param({"8", "16", "24"})
+    public int n;
+
+    private String run;
+    private Matcher nestedStar;
+    private Matcher optionals;
+    private java.util.regex.Pattern jdkNestedStar;
+    private java.util.regex.Pattern jdkOptionals;
+
+    @Setup
+    public void setUp() {
+        run = "a".repeat(n);
+        String optionalsRegex = "a?{" + n + "}a{" + n + "}";
+        nestedStar = new Compiler().compile("(a*)*b");
+        optionals = new Compiler().compile(optionalsRegex);
+        jdkNestedStar = java.util.regex.Pattern.compile("(a*)*b");
+        jdkOptionals = java.util.regex.Pattern.compile(optionalsRegex);
+    }
+
+    @Benchmark
+    public boolean nestedStar() {
+        return nestedStar.test(run);
+    }
+
+    @Benchmark
+    public boolean jdkNestedStar() {
+        return jdkNestedStar.matcher(run).matches();
+    }
+
+    @Benchmark
+    public boolean optionals() {
+        return optionals.test(run);
+    }
+
+    @Benchmark
+    public boolean jdkOptionals() {
+        return jdkOptionals.matcher(run).matches();
+    }
+}
@@ -0,0 +1,342 @@
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Parsed regular expression, built by {@link Parser}, rewritten by {@link Simplifier} and turned into an NFA by the
+ * {@link Compiler}. Nodes are immutable and compare by structure, so equal subexpressions can be found and shared.
+ * <p>
+ * {@link #toString()} prints the expression in the syntax accepted by the parser, with non-capturing groups wherever
+ * the structure needs parentheses.
+ */
+public abstract class Ast {
+    /**
+     * @return whether this node contains a capture group
+     */
+    public abstract boolean hasGroups();
+
+    abstract void print(StringBuilder out);
+
+    /**
+     * @return the priority of the node when printed, higher binding tighter
+     */
+    abstract int precedence();
+
+    void print(StringBuilder out, int precedence) {
+        if (precedence() < precedence) {
+            out.append("(?:");
+            print(out);
+            out.append(')');
+        } else {
+            print(out);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        print(out);
+        return out.toString();
+    }
+
+    /**
+     * Matches the empty string.
+     */
+    public static class Empty extends Ast {
+        public static final Empty INSTANCE = new Empty();
+
+        private Empty() {
+        }
+
+        @Override
+        public boolean hasGroups() {
+            return false;
+        }
+
+        @Override
+        void print(StringBuilder out) {
+        }
+
+        /**
+         * Lowest, so the empty string is printed as {@code (?:)} wherever it would vanish.
+         */
+        @Override
+        int precedence() {
+            return 0;
+        }
+    }
+
+    /**
+     * Matches one character of a class, which may be a single character.
+     */
+    public static class Chars extends Ast {
+        private static final String SPECIAL = "\\.*+?|(){}[]^$";
+        private static final CharClass DOT = CharClass.of('\n').negate();
+
+        private final CharClass chars;
+
+        public Chars(CharClass chars) {
+            this.chars = chars;
+        }
+
+        public CharClass getChars() {
+            return chars;
+        }
+
+        @Override
+        public boolean hasGroups() {
+            return false;
+        }
+
+        @Override
+        void print(StringBuilder out) {
+            if (chars.equals(DOT)) {
+                out.append('.');
+            } else if (chars.rangeCount() == 1 && chars.from(0) == chars.to(0)) {
+                printChar(out, chars.from(0), SPECIAL);
+            } else {
+                CharClass negated = chars.negate();
+                boolean negate = negated.rangeCount() < chars.rangeCount();
+                CharClass printed = negate ? negated : chars;
+                out.append(negate ? "[^" : "[");
+                for (int i = 0; i < printed.rangeCount(); i++) {
+                    printChar(out, printed.from(i), "\\]-^");
+                    if (printed.to(i) > printed.from(i)) {
+                        if (printed.to(i) > printed.from(i) + 1) {
+                            out.append('-');
+                        }
+                        printChar(out, printed.to(i), "\\]-^");
+                    }
+                }
+                out.append(']');
+            }
+        }
+
+        private static void printChar(StringBuilder out, char c, String special) {
+            if (special.indexOf(c) >= 0) {
+                out.append('\\');
+            }
+            out.append(c);
+        }
+
+        @Override
+        int precedence() {
+            return 3;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Chars && chars.equals(((Chars) o).chars);
+        }
+
+        @Override
+        public int hashCode() {
+            return chars.hashCode();
+        }
+    }
+
+    /**
+     * Matches its items one after the other.
+     */
+    public static class Concat extends Ast {
+        private final List<Ast> items;
+
+        public Concat(List<Ast> items) {
+            this.items = List.copyOf(items);
+        }
+
+        public List<Ast> getItems() {
+            return items;
+        }
+
+        @Override
+        public boolean hasGroups() {
+            return items.stream().anyMatch(Ast::hasGroups);
+        }
+
+        @Override
+        void print(StringBuilder out) {
+            for (Ast item : items) {
+                item.print(out, 2);
+            }
+        }
+
+        @Override
+        int precedence() {
+            return 1;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Concat && items.equals(((Concat) o).items);
+        }
+
+        @Override
+        public int hashCode() {
+            return items.hashCode();
+        }
+    }
+
+    /**
+     * Matches any of its branches. Earlier branches take priority when the capture groups are extracted.
+     */
+    public static class Alternation extends Ast {
+        private final List<Ast> branches;
+
+        public Alternation(List<Ast> branches) {
+            this.branches = List.copyOf(branches);
+        }
+
+        public List<Ast> getBranches() {
+            return branches;
+        }
+
+        @Override
+        public boolean hasGroups() {
+            return branches.stream().anyMatch(Ast::hasGroups);
+        }
+
+        @Override
+        void print(StringBuilder out) {
+            for (int i = 0; i < branches.size(); i++) {
+                if (i > 0) {
+                    out.append('|');
+                }
+                branches.get(i).print(out, 1);
+            }
+        }
+
+        @Override
+        int precedence() {
+            return 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Alternation && branches.equals(((Alternation) o).branches);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * branches.hashCode() + 1;
+        }
+    }
+
+    /**
+     * Matches between {@code min} and {@code max} repetitions of its child, where a maximum of -1 is unbounded.
+     */
+    public static class Repeat extends Ast {
+        private final Ast child;
+        private final int min;
+        private final int max;
+
+        public Repeat(Ast child, int min, int max) {
+            this.child = child;
+            this.min = min;
+            this.max = max;
+        }
+
+        public Ast getChild() {
+            return child;
+        }
+
+        public int getMin() {
+            return min;
+        }
+
+        public int getMax() {
+            return max;
+        }
+
+        @Override
+        public boolean hasGroups() {
+            return child.hasGroups();
+        }
+
+        @Override
+        void print(StringBuilder out) {
+            child.print(out, 3);
+            if (min == 0 && max == -1) {
+                out.append('*');
+            } else if (min == 1 && max == -1) {
+                out.append('+');
+            } else if (min == 0 && max == 1) {
+                out.append('?');
+            } else if (min == max) {
+                out.append('{').append(min).append('}');
+            } else {
+                out.append('{').append(min).append(',').append(max < 0 ? "" : String.valueOf(max)).append('}');
+            }
+        }
+
+        @Override
+        int precedence() {
+            return 2;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Repeat)) {
+                return false;
+            }
+            Repeat other = (Repeat) o;
+            return child.equals(other.child) && min == other.min && max == other.max;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(child, min, max);
+        }
+    }
+
+    /**
+     * Capture group with the given number, counting opening parentheses from 1.
+     */
+    public static class Group extends Ast {
+        private final Ast child;
+        private final int index;
+
+        public Group(Ast child, int index) {
+            this.child = child;
+            this.index = index;
+        }
+
+        public Ast getChild() {
+            return child;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        @Override
+        public boolean hasGroups() {
+            return true;
+        }
+
+        @Override
+        void print(StringBuilder out) {
+            out.append('(');
+            child.print(out);
+            out.append(')');
+        }
+
+        @Override
+        int precedence() {
+            return 3;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Group)) {
+                return false;
+            }
+            Group other = (Group) o;
+            return child.equals(other.child) && index == other.index;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(child, index);
+        }
+    }
+}
@@ -0,0 +1,6 @@
+/**
+ * Decides whether a whole input matches, without extracting any positions.
+ */
+public interface Automaton {
+    boolean test(CharSequence s);
+}
@@ -0,0 +1,70 @@
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for the binary format written by {@link Matcher#writeTo}. Arrays are written as their length followed by
+ * their big-endian elements and read back with bulk copies, which is fast from a memory-mapped buffer.
+ */
+public class BinaryFormat {
+    public static final int MAGIC = 0x52474c53;
+    public static final int VERSION = 2;
+
+    public static void writeInts(DataOutput out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    public static void writeChars(DataOutput out, char[] values) throws IOException {
+        out.writeInt(values.length);
+        for (char value : values) {
+            out.writeChar(value);
+        }
+    }
+
+    public static void writeString(DataOutput out, String value) throws IOException {
+        writeChars(out, value.toCharArray());
+    }
+
+    public static int readInt(ByteBuffer in) throws IOException {
+        try {
+            return in.getInt();
+        } catch (BufferUnderflowException e) {
+            throw truncated();
+        }
+    }
+
+    public static int[] readInts(ByteBuffer in) throws IOException {
+        int[] values = new int[readLength(in, Integer.BYTES)];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + values.length * Integer.BYTES);
+        return values;
+    }
+
+    public static char[] readChars(ByteBuffer in) throws IOException {
+        char[] values = new char[readLength(in, Character.BYTES)];
+        in.asCharBuffer().get(values);
+        in.position(in.position() + values.length * Character.BYTES);
+        return values;
+    }
+
+    public static String readString(ByteBuffer in) throws IOException {
+        return new String(readChars(in));
+    }
+
+    private static int readLength(ByteBuffer in, int elementSize) throws IOException {
+        int length = readInt(in);
+        if (length < 0 || (long) length * elementSize > in.remaining()) {
+            throw truncated();
+        }
+        return length;
+    }
+
+    private static StreamCorruptedException truncated() {
+        return new StreamCorruptedException("Truncated or corrupted pattern data");
+    }
+}
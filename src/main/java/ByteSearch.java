@@ -0,0 +1,76 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Finds bytes in arrays eight at a time, by treating a {@code long} as a vector of bytes. A byte of the word equals
+ * the searched byte if it is zero after xor, and {@code (x - 0x01..01) & ~x & 0x80..80} flags the zero bytes of
+ * {@code x}. Only bytes above a zero byte can be flagged wrongly, so the lowest flag of a little-endian word is exact.
+ * <p>
+ * This gets much of the benefit of SIMD without the incubating Vector API, which needs extra module flags.
+ */
+public class ByteSearch {
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    /**
+     * Most bytes searched at once by {@link #indexOfAny}.
+     */
+    public static final int MAX_SET_SIZE = 3;
+
+    private ByteSearch() {
+    }
+
+    /**
+     * @return the first index between {@code from} and {@code to} at which {@code b} occurs, or -1
+     */
+    public static int indexOf(byte[] bytes, int from, int to, byte b) {
+        long pattern = (b & 0xffL) * ONES;
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            long found = zeros((long) LONGS.get(bytes, i) ^ pattern);
+            if (found != 0) {
+                return i + Long.numberOfTrailingZeros(found) / Byte.SIZE;
+            }
+        }
+        for (; i < to; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param set between one and {@link #MAX_SET_SIZE} bytes
+     * @return the first index between {@code from} and {@code to} at which any byte of the set occurs, or -1
+     */
+    public static int indexOfAny(byte[] bytes, int from, int to, byte[] set) {
+        if (set.length == 1) {
+            return indexOf(bytes, from, to, set[0]);
+        }
+        long first = (set[0] & 0xffL) * ONES;
+        long second = (set[1] & 0xffL) * ONES;
+        long third = (set[set.length - 1] & 0xffL) * ONES;
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            long word = (long) LONGS.get(bytes, i);
+            long found = zeros(word ^ first) | zeros(word ^ second) | zeros(word ^ third);
+            if (found != 0) {
+                return i + Long.numberOfTrailingZeros(found) / Byte.SIZE;
+            }
+        }
+        for (; i < to; i++) {
+            byte b = bytes[i];
+            if (b == set[0] || b == set[1] || b == set[set.length - 1]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long zeros(long x) {
+        return (x - ONES) & ~x & HIGHS;
+    }
+}
@@ -0,0 +1,132 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Presents bytes as a sequence of chars between 0 and 255, so byte inputs can be run through the same automata as
+ * strings once the program was rewritten by {@link Utf8Lowering}. Nothing is copied or decoded.
+ */
+public abstract class ByteSequence implements CharSequence {
+    public static ByteSequence of(byte[] bytes) {
+        return of(bytes, 0, bytes.length);
+    }
+
+    public static ByteSequence of(byte[] bytes, int offset, int length) {
+        return new ArraySequence(bytes, offset, length);
+    }
+
+    /**
+     * @return a view of the bytes between the position and the limit of the buffer, which are not consumed
+     */
+    public static ByteSequence of(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return of(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        return new BufferSequence(buffer, buffer.position(), buffer.remaining());
+    }
+
+    /**
+     * @return the first index at or after {@code from} of {@code b}, or -1
+     */
+    public int indexOf(byte b, int from) {
+        for (int i = Math.max(from, 0); i < length(); i++) {
+            if (charAt(i) == (b & 0xff)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param set between one and {@link ByteSearch#MAX_SET_SIZE} bytes
+     * @return the first index at or after {@code from} of any byte of the set, or -1
+     */
+    public int indexOfAny(byte[] set, int from) {
+        for (int i = Math.max(from, 0); i < length(); i++) {
+            char c = charAt(i);
+            for (byte b : set) {
+                if (c == (b & 0xff)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        byte[] bytes = new byte[length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) charAt(i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class ArraySequence extends ByteSequence {
+        private final byte[] bytes;
+        private final int offset;
+        private final int length;
+
+        ArraySequence(byte[] bytes, int offset, int length) {
+            if (offset < 0 || length < 0 || offset + length > bytes.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes[offset + index] & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new ArraySequence(bytes, offset + start, end - start);
+        }
+
+        @Override
+        public int indexOf(byte b, int from) {
+            int index = ByteSearch.indexOf(bytes, offset + Math.max(from, 0), offset + length, b);
+            return index < 0 ? -1 : index - offset;
+        }
+
+        @Override
+        public int indexOfAny(byte[] set, int from) {
+            int index = ByteSearch.indexOfAny(bytes, offset + Math.max(from, 0), offset + length, set);
+            return index < 0 ? -1 : index - offset;
+        }
+    }
+
+    private static class BufferSequence extends ByteSequence {
+        private final ByteBuffer buffer;
+        private final int offset;
+        private final int length;
+
+        BufferSequence(ByteBuffer buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (buffer.get(offset + index) & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new BufferSequence(buffer, offset + start, end - start);
+        }
+    }
+}
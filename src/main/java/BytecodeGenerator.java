@@ -0,0 +1,385 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Turns a {@link DenseDfa} into a hidden class implementing {@link Automaton}, so the JIT compiles the automaton like
+ * hand-written code instead of interpreting a table.
+ * <p>
+ * Every live state becomes a labelled block of the generated {@code test} method. A block returns whether the state
+ * accepts once the input is exhausted, otherwise it reads the next character and compares it against the sorted
+ * character ranges leading to other states, jumping to the block of the matching state. Characters outside all ranges
+ * lead to the dead state and return false.
+ * <p>
+ * The class file is assembled directly. The method only uses the locals {@code this, s, i, length, c} and no operand
+ * stack across jumps, so every branch target shares the same stack map frame.
+ */
+public class BytecodeGenerator {
+    private static final int MAX_CODE_SIZE = Short.MAX_VALUE;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int ICONST_0 = 0x03;
+    private static final int ICONST_1 = 0x04;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD = 0x15;
+    private static final int ILOAD_2 = 0x1c;
+    private static final int ILOAD_3 = 0x1d;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ISTORE = 0x36;
+    private static final int ISTORE_2 = 0x3d;
+    private static final int ISTORE_3 = 0x3e;
+    private static final int IINC = 0x84;
+    private static final int IF_ICMPLT = 0xa1;
+    private static final int IF_ICMPGT = 0xa3;
+    private static final int GOTO = 0xa7;
+    private static final int IRETURN = 0xac;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKEINTERFACE = 0xb9;
+
+    private static final int CHAR_LOCAL = 4;
+
+    private final ConstantPool pool = new ConstantPool();
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private final Map<Integer, Integer> labels = new HashMap<>();
+    private final List<int[]> jumps = new ArrayList<>();
+    private int labelCount;
+
+    /**
+     * @return the generated automaton, or null if the DFA is too large for a single method or the class could not be
+     * accessed. A class file rejected by the verifier is a bug of the generator and fails with its {@link LinkageError}.
+     */
+    public Automaton generate(DenseDfa dfa) {
+        byte[] classFile = assemble(dfa);
+        if (classFile == null) {
+            return null;
+        }
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+            return (Automaton) lookup.lookupClass().getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the class file, or null if the method would exceed {@link #MAX_CODE_SIZE} bytes
+     */
+    byte[] assemble(DenseDfa dfa) {
+        int thisClass = pool.classRef("GeneratedAutomaton");
+        int objectClass = pool.classRef("java/lang/Object");
+        int automatonClass = pool.classRef("Automaton");
+        int charSequenceClass = pool.classRef("java/lang/CharSequence");
+        int objectInit = pool.memberRef(10, objectClass, "<init>", "()V");
+        int length = pool.memberRef(11, charSequenceClass, "length", "()I");
+        int charAt = pool.memberRef(11, charSequenceClass, "charAt", "(I)C");
+
+        int[] stateLabels = new int[dfa.stateCount()];
+        for (int state = 1; state < stateLabels.length; state++) {
+            stateLabels[state] = newLabel();
+        }
+
+        op(ALOAD_1);
+        op(INVOKEINTERFACE, length >> 8, length, 1, 0);
+        op(ISTORE_3);
+        op(ICONST_0);
+        op(ISTORE_2);
+        op(ICONST_0);
+        op(ISTORE, CHAR_LOCAL);
+        if (dfa.getStart() == 0) {
+            op(ICONST_0);
+            op(IRETURN);
+        } else {
+            jump(GOTO, stateLabels[dfa.getStart()]);
+        }
+
+        char[] boundaries = classBoundaries(dfa);
+        for (int state = 1; state < stateLabels.length; state++) {
+            bind(stateLabels[state]);
+            int read = newLabel();
+            int dead = newLabel();
+            op(ILOAD_2);
+            op(ILOAD_3);
+            jump(IF_ICMPLT, read);
+            op(dfa.isAccepting(state) ? ICONST_1 : ICONST_0);
+            op(IRETURN);
+
+            bind(read);
+            op(ALOAD_1);
+            op(ILOAD_2);
+            op(INVOKEINTERFACE, charAt >> 8, charAt, 2, 0);
+            op(ISTORE, CHAR_LOCAL);
+            op(IINC, 2, 1);
+
+            int expected = 0;
+            for (int c = 0; c < boundaries.length; c++) {
+                int target = dfa.next(state, c);
+                int last = c;
+                while (last + 1 < boundaries.length && dfa.next(state, last + 1) == target) {
+                    last++;
+                }
+                int from = boundaries[c];
+                int to = last + 1 < boundaries.length ? boundaries[last + 1] - 1 : Character.MAX_VALUE;
+                c = last;
+                if (target == 0) {
+                    continue;
+                }
+
+                int next = newLabel();
+                if (to < Character.MAX_VALUE) {
+                    op(ILOAD, CHAR_LOCAL);
+                    push(to);
+                    jump(IF_ICMPGT, next);
+                }
+                if (from > expected) {
+                    op(ILOAD, CHAR_LOCAL);
+                    push(from);
+                    jump(IF_ICMPLT, dead);
+                }
+                jump(GOTO, stateLabels[target]);
+                bind(next);
+                expected = to + 1;
+            }
+
+            bind(dead);
+            op(ICONST_0);
+            op(IRETURN);
+            if (code.size() > MAX_CODE_SIZE) {
+                return null;
+            }
+        }
+
+        byte[] testCode = resolve();
+        byte[] stackMap = stackMap(thisClass, charSequenceClass);
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            int codeName = pool.utf8("Code");
+            int stackMapName = pool.utf8("StackMapTable");
+            int initName = pool.utf8("<init>");
+            int initType = pool.utf8("()V");
+            int testName = pool.utf8("test");
+            int testType = pool.utf8("(Ljava/lang/CharSequence;)Z");
+
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(61);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(objectClass);
+            out.writeShort(1);
+            out.writeShort(automatonClass);
+            out.writeShort(0);
+
+            out.writeShort(2);
+            out.writeShort(ACC_PUBLIC);
+            out.writeShort(initName);
+            out.writeShort(initType);
+            out.writeShort(1);
+            byte[] initCode = {(byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit,
+                    (byte) RETURN};
+            out.writeShort(codeName);
+            out.writeInt(12 + initCode.length);
+            out.writeShort(1);
+            out.writeShort(1);
+            out.writeInt(initCode.length);
+            out.write(initCode);
+            out.writeShort(0);
+            out.writeShort(0);
+
+            out.writeShort(ACC_PUBLIC);
+            out.writeShort(testName);
+            out.writeShort(testType);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + testCode.length + 6 + stackMap.length);
+            out.writeShort(2);
+            out.writeShort(CHAR_LOCAL + 1);
+            out.writeInt(testCode.length);
+            out.write(testCode);
+            out.writeShort(0);
+            out.writeShort(1);
+            out.writeShort(stackMapName);
+            out.writeInt(stackMap.length);
+            out.write(stackMap);
+
+            out.writeShort(0);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the first character of every class, in ascending order
+     */
+    private static char[] classBoundaries(DenseDfa dfa) {
+        char[] boundaries = new char[dfa.classCount()];
+        int count = 0;
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            if (c == 0 || dfa.classOf((char) c) != dfa.classOf((char) (c - 1))) {
+                boundaries[count++] = (char) c;
+            }
+        }
+        return boundaries;
+    }
+
+    private int newLabel() {
+        return labelCount++;
+    }
+
+    private void bind(int label) {
+        labels.put(label, code.size());
+    }
+
+    private void op(int... bytes) {
+        for (int b : bytes) {
+            code.write(b);
+        }
+    }
+
+    private void jump(int opcode, int label) {
+        jumps.add(new int[]{code.size(), label});
+        op(opcode, 0, 0);
+    }
+
+    private void push(int value) {
+        if (value <= Short.MAX_VALUE) {
+            op(SIPUSH, value >> 8, value);
+        } else {
+            int index = pool.integer(value);
+            op(LDC_W, index >> 8, index);
+        }
+    }
+
+    private byte[] resolve() {
+        byte[] bytes = code.toByteArray();
+        for (int[] jump : jumps) {
+            int offset = labels.get(jump[1]) - jump[0];
+            bytes[jump[0] + 1] = (byte) (offset >> 8);
+            bytes[jump[0] + 2] = (byte) offset;
+        }
+        return bytes;
+    }
+
+    /**
+     * A full frame for the first label, after which all locals are assigned, and the same frame for every other label.
+     */
+    private byte[] stackMap(int thisClass, int charSequenceClass) {
+        TreeSet<Integer> offsets = new TreeSet<>(labels.values());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(offsets.size());
+            int previous = -1;
+            for (int offset : offsets) {
+                int delta = offset - previous - 1;
+                if (previous < 0) {
+                    out.writeByte(255);
+                    out.writeShort(delta);
+                    out.writeShort(CHAR_LOCAL + 1);
+                    out.writeByte(7);
+                    out.writeShort(thisClass);
+                    out.writeByte(7);
+                    out.writeShort(charSequenceClass);
+                    for (int i = 0; i < 3; i++) {
+                        out.writeByte(1);
+                    }
+                    out.writeShort(0);
+                } else if (delta < 64) {
+                    out.writeByte(delta);
+                } else {
+                    out.writeByte(251);
+                    out.writeShort(delta);
+                }
+                previous = offset;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> indices = new HashMap<>();
+        private int count = 1;
+
+        int utf8(String value) {
+            return entry("U" + value, () -> {
+                out.writeByte(1);
+                out.writeUTF(value);
+            });
+        }
+
+        int integer(int value) {
+            return entry("I" + value, () -> {
+                out.writeByte(3);
+                out.writeInt(value);
+            });
+        }
+
+        int classRef(String name) {
+            int nameIndex = utf8(name);
+            return entry("C" + name, () -> {
+                out.writeByte(7);
+                out.writeShort(nameIndex);
+            });
+        }
+
+        /**
+         * @param tag 10 for a class method, 11 for an interface method
+         */
+        int memberRef(int tag, int owner, String name, String type) {
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(type);
+            int nameAndType = entry("N" + name + type, () -> {
+                out.writeByte(12);
+                out.writeShort(nameIndex);
+                out.writeShort(typeIndex);
+            });
+            return entry("M" + owner + name + type, () -> {
+                out.writeByte(tag);
+                out.writeShort(owner);
+                out.writeShort(nameAndType);
+            });
+        }
+
+        void writeTo(DataOutputStream target) throws IOException {
+            target.writeShort(count);
+            bytes.writeTo(target);
+        }
+
+        private int entry(String key, Entry entry) {
+            Integer index = indices.get(key);
+            if (index == null) {
+                try {
+                    entry.write();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                index = count++;
+                indices.put(key, index);
+            }
+            return index;
+        }
+
+        private interface Entry {
+            void write() throws IOException;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Immutable set of characters, stored as sorted, merged and non-adjacent ranges. Lookups for ASCII characters use a
+ * 128 bit bitmap, all others a binary search over the ranges.
+ */
+public final class CharClass implements CharMatcher {
+    public static final CharClass NONE = new CharClass(new char[0]);
+    public static final CharClass ANY = range(Character.MIN_VALUE, Character.MAX_VALUE);
+
+    private static final int MAX_PRINTED_RANGES = 8;
+
+    private final char[] ranges;
+    private final long lowBits;
+    private final long highBits;
+
+    private CharClass(char[] ranges) {
+        this.ranges = ranges;
+
+        long low = 0;
+        long high = 0;
+        for (int i = 0; i < ranges.length && ranges[i] < 128; i += 2) {
+            for (int c = ranges[i]; c <= ranges[i + 1] && c < 128; c++) {
+                if (c < 64) {
+                    low |= 1L << c;
+                } else {
+                    high |= 1L << (c - 64);
+                }
+            }
+        }
+        this.lowBits = low;
+        this.highBits = high;
+    }
+
+    public static CharClass of(char c) {
+        return range(c, c);
+    }
+
+    public static CharClass range(char from, char to) {
+        if (from > to) {
+            throw new CompileException(String.format("Invalid range '%s-%s'", from, to));
+        }
+        return new CharClass(new char[]{from, to});
+    }
+
+    /**
+     * Builds the class of all characters accepted by the predicate by testing every character once.
+     */
+    public static CharClass matching(IntPredicate predicate) {
+        char[] ranges = new char[16];
+        int size = 0;
+
+        int c = Character.MIN_VALUE;
+        while (c <= Character.MAX_VALUE) {
+            if (!predicate.test(c)) {
+                c++;
+                continue;
+            }
+            int from = c;
+            while (c + 1 <= Character.MAX_VALUE && predicate.test(c + 1)) {
+                c++;
+            }
+            if (size == ranges.length) {
+                ranges = Arrays.copyOf(ranges, size * 2);
+            }
+            ranges[size++] = (char) from;
+            ranges[size++] = (char) c;
+            c++;
+        }
+
+        return new CharClass(Arrays.copyOf(ranges, size));
+    }
+
+    @Override
+    public boolean matches(char c) {
+        if (c < 64) {
+            return (lowBits & (1L << c)) != 0;
+        }
+        if (c < 128) {
+            return (highBits & (1L << (c - 64))) != 0;
+        }
+
+        int low = 0;
+        int high = ranges.length / 2 - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (c < ranges[2 * middle]) {
+                high = middle - 1;
+            } else if (c > ranges[2 * middle + 1]) {
+                low = middle + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public CharClass union(CharClass other) {
+        char[] merged = new char[ranges.length + other.ranges.length];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+
+        while (i < ranges.length || j < other.ranges.length) {
+            char from;
+            char to;
+            if (j >= other.ranges.length || (i < ranges.length && ranges[i] <= other.ranges[j])) {
+                from = ranges[i];
+                to = ranges[i + 1];
+                i += 2;
+            } else {
+                from = other.ranges[j];
+                to = other.ranges[j + 1];
+                j += 2;
+            }
+
+            if (size > 0 && from <= merged[size - 1] + 1) {
+                merged[size - 1] = (char) Math.max(merged[size - 1], to);
+            } else {
+                merged[size++] = from;
+                merged[size++] = to;
+            }
+        }
+
+        return new CharClass(Arrays.copyOf(merged, size));
+    }
+
+    public CharClass negate() {
+        char[] inverted = new char[ranges.length + 2];
+        int size = 0;
+        int next = Character.MIN_VALUE;
+
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] > next) {
+                inverted[size++] = (char) next;
+                inverted[size++] = (char) (ranges[i] - 1);
+            }
+            next = ranges[i + 1] + 1;
+        }
+        if (next <= Character.MAX_VALUE) {
+            inverted[size++] = (char) next;
+            inverted[size++] = Character.MAX_VALUE;
+        }
+
+        return new CharClass(Arrays.copyOf(inverted, size));
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        BinaryFormat.writeChars(out, ranges);
+    }
+
+    public static CharClass readFrom(ByteBuffer in) throws IOException {
+        char[] ranges = BinaryFormat.readChars(in);
+        for (int i = 0; i < ranges.length; i++) {
+            boolean ordered = i % 2 == 1 ? ranges[i] >= ranges[i - 1] : i == 0 || ranges[i] > ranges[i - 1] + 1;
+            if (!ordered || ranges.length % 2 != 0) {
+                throw new StreamCorruptedException("Invalid character class");
+            }
+        }
+        return new CharClass(ranges);
+    }
+
+    public int rangeCount() {
+        return ranges.length / 2;
+    }
+
+    public char from(int range) {
+        return ranges[2 * range];
+    }
+
+    public char to(int range) {
+        return ranges[2 * range + 1];
+    }
+
+    public boolean isEmpty() {
+        return ranges.length == 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CharClass && Arrays.equals(ranges, ((CharClass) o).ranges);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(ranges);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder string = new StringBuilder("[");
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (i == 2 * MAX_PRINTED_RANGES) {
+                string.append("...");
+                break;
+            }
+            append(string, ranges[i]);
+            if (ranges[i + 1] != ranges[i]) {
+                string.append('-');
+                append(string, ranges[i + 1]);
+            }
+        }
+        return string.append(']').toString();
+    }
+
+    private void append(StringBuilder string, char c) {
+        if (c >= 0x20 && c < 0x7f) {
+            string.append(c);
+        } else {
+            string.append(String.format("\\u%04x", (int) c));
+        }
+    }
+}
@@ -0,0 +1,3 @@
+public interface CharMatcher {
+    boolean matches(char c);
+}
@@ -1,241 +1,242 @@
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Stack;
-import java.util.function.Predicate;
 
 public class Compiler {
-    public Matcher compile(String regex) {
-        StringLookAhead iterator = new StringLookAhead(new Optimizer().prepare(regex));
-        Node nfa = generateNfa(compile(iterator, new Stack<>()));
-        return new Matcher(nfa);
-    }
+    public static final int MAX_REPETITION = 1000;
+    public static final int DEFAULT_MAX_NFA_SIZE = 250_000;
 
-    private Node generateNfa(Fragment fragment) {
-        Node end = new Node();
-        end.markAsEnd();
+    private Options options;
+    private int groupCount;
+    private NfaReduction reduction;
 
-        fragment.getDangling().forEach(dangling -> dangling.setDestination(end));
+    public Compiler() {
+        this(new Options());
+    }
 
-        return fragment.getStart();
+    public Compiler(Options options) {
+        this.options = options;
     }
 
-    private Fragment compile(StringLookAhead iterator, Stack<Fragment> fragments) {
-        while (iterator.hasMore()) {
-            if (isQuantifier(iterator.current())) {
-                compileQuantifier(iterator, fragments);
-            } else if (iterator.current() == '|') {
-                compileOr(iterator, fragments);
-            } else if (iterator.current() == '(') {
-                fragments.push(compileGroup(iterator));
-                if (iterator.hasMore()) {
-                    if (isQuantifier(iterator.current())) {
-                        compileQuantifier(iterator, fragments);
-                    }
-                }
-                pushConcat(fragments);
-            } else if (iterator.current() == ')') {
-                break;
-            } else if (iterator.current() == '[') {
-                compileCharacterClass(iterator, fragments);
-                pushConcat(fragments);
-            } else {
-                readConcat(iterator, fragments);
-                pushConcat(fragments);
-            }
+    public Matcher compile(String regex) {
+        Statistics statistics = options.isStatistics() ? new Statistics(regex) : null;
+        long start = System.nanoTime();
+        Node nfa = compileNfa(regex, 0, false);
+        Program program = new Lowering().lower(nfa, groupCount);
+        Matcher matcher = new Matcher(nfa, program, Prefilter.of(program), options, statistics);
+        if (statistics != null) {
+            statistics.recordCompile(System.nanoTime() - start);
         }
+        return matcher;
+    }
 
-        return fragments.pop();
+    /**
+     * @return the sizes of the NFA of the last compiled regex before and after it was reduced, or null if
+     * {@link Options#isNfaReduction()} is off
+     */
+    public NfaReduction getReduction() {
+        return reduction;
     }
 
-    private void compileCharacterClass(StringLookAhead iterator, Stack<Fragment> fragments) {
-        iterator.eat('[');
+    /**
+     * Compiles all regexes into one automaton, in which the accepting node of the i-th regex is tagged with i. A set
+     * only reports which regexes match, so their capture groups are dropped.
+     */
+    public RegexSet compileSet(List<String> regexes) {
+        Node root = new Node();
 
-        boolean negate = false;
-        if (iterator.current() == '^') {
-            negate = true;
-            iterator.proceedPosition();
+        for (int i = 0; i < regexes.size(); i++) {
+            root.addTransition(new Transition(Transition.EMPTY_TRANSITION, compileNfa(regexes.get(i), i, true)));
         }
 
-        Predicate<Character> matcher = null;
-        while (iterator.hasMore() && iterator.current() != ']') {
-            if (iterator.current() == '\\' && iterator.hasNext() && MetaCharacters.exists(iterator.next())) {
-                iterator.proceedPosition();
-                matcher = or(matcher, MetaCharacters.getHandler(iterator.current()));
-            } else if (iterator.hasNext() && iterator.next() == '-' && iterator.hasNextNext() && iterator.nextNext() != ']') {
-                matcher = parseRange(iterator);
-            } else {
-                removeEscaping(iterator);
-
-                Character transitionChar = iterator.current();
-                matcher = or(matcher, (character) -> character.equals(transitionChar));
-            }
-            iterator.proceedPosition();
-        }
+        Program program = new Lowering().lower(root, 0);
+        return new RegexSet(program, regexes.size(), options);
+    }
 
-        if (negate) {
-            matcher = matcher.negate();
+    private Node compileNfa(String regex, int pattern, boolean dropGroups) {
+        Parser parser = new Parser();
+        Ast ast = new Simplifier(dropGroups).simplify(parser.parse(regex));
+        groupCount = parser.getGroupCount();
+        if (size(ast) > options.getMaxNfaSize()) {
+            throw new CompileException(String.format("Regex expands to more than %s states", options.getMaxNfaSize()));
         }
 
-        Node start = new Node();
-        Transition transition = new Transition(matcher, null);
-        start.addTransition(transition);
-
-        Fragment fragment = new Fragment(start, Collections.singletonList(transition));
-        fragments.push(fragment);
-
-        iterator.eat(']');
+        Node nfa = generateNfa(compile(ast), pattern);
+        if (!options.isNfaReduction()) {
+            reduction = null;
+            return nfa;
+        }
+        reduction = new NfaReduction();
+        return reduction.reduce(nfa);
+    }
 
-        if (iterator.hasMore()) {
-            if (isQuantifier(iterator.current())) {
-                compileQuantifier(iterator, fragments);
+    /**
+     * @return the number of nodes {@link #compile(Ast)} creates for the AST, or a number above
+     * {@link Options#getMaxNfaSize()} if it creates more
+     */
+    private long size(Ast ast) {
+        long size = 1;
+        if (ast instanceof Ast.Concat) {
+            size = 0;
+            for (Ast item : ((Ast.Concat) ast).getItems()) {
+                size += size(item);
             }
+        } else if (ast instanceof Ast.Alternation) {
+            for (Ast branch : ((Ast.Alternation) ast).getBranches()) {
+                size += size(branch);
+            }
+        } else if (ast instanceof Ast.Repeat) {
+            Ast.Repeat repeat = (Ast.Repeat) ast;
+            int count = repeat.getMax() < 0 ? Math.max(repeat.getMin(), 1) : repeat.getMax();
+            int optional = repeat.getMax() < 0 ? 1 : repeat.getMax() - repeat.getMin();
+            size = count == 0 ? 1 : count * size(repeat.getChild()) + optional;
+        } else if (ast instanceof Ast.Group) {
+            size = 2 + size(((Ast.Group) ast).getChild());
         }
+        return Math.min(size, options.getMaxNfaSize() + 1L);
     }
 
-    private Predicate<Character> parseRange(StringLookAhead iterator) {
-        Character from = iterator.current();
-        iterator.proceedPosition();
-        iterator.eat('-');
-        Character to = iterator.current();
+    private Node generateNfa(Fragment fragment, int pattern) {
+        Node end = new Node();
+        end.markAsEnd(pattern);
+
+        fragment.getDangling().forEach(dangling -> dangling.setDestination(end));
 
-        return (character) -> character >= from && character <= to;
+        return fragment.getStart();
     }
 
-    private Predicate<Character> or(Predicate<Character> current, Predicate<Character> next) {
-        if (current == null) {
-            return next;
-        } else {
-            return current.or(next);
+    private Fragment compile(Ast ast) {
+        if (ast instanceof Ast.Chars) {
+            Node start = new Node();
+            Transition transition = new Transition(((Ast.Chars) ast).getChars(), null);
+            start.addTransition(transition);
+            return new Fragment(start, Collections.singletonList(transition));
+        } else if (ast instanceof Ast.Concat) {
+            List<Fragment> fragments = new ArrayList<>();
+            for (Ast item : ((Ast.Concat) ast).getItems()) {
+                fragments.add(compile(item));
+            }
+            return concat(fragments, 0, fragments.size());
+        } else if (ast instanceof Ast.Alternation) {
+            return compileAlternation((Ast.Alternation) ast);
+        } else if (ast instanceof Ast.Repeat) {
+            Ast.Repeat repeat = (Ast.Repeat) ast;
+            return repeat(compile(repeat.getChild()), repeat.getMin(), repeat.getMax());
+        } else if (ast instanceof Ast.Group) {
+            return compileGroup((Ast.Group) ast);
         }
+        return empty();
     }
 
-    private boolean isQuantifier(Character character) {
-        return character == '*' || character == '+' || character == '?';
+    /**
+     * Compiles all branches behind one node, with one empty transition per branch in order of priority.
+     */
+    private Fragment compileAlternation(Ast.Alternation alternation) {
+        Node split = new Node();
+        List<Transition> dangling = new ArrayList<>();
+        for (Ast branch : alternation.getBranches()) {
+            Fragment fragment = compile(branch);
+            split.addTransition(new Transition(Transition.EMPTY_TRANSITION, fragment.getStart()));
+            dangling.addAll(fragment.getDangling());
+        }
+        return new Fragment(split, dangling);
     }
 
-    private Fragment compileGroup(StringLookAhead iterator) {
-        iterator.eat('(');
-        Fragment fragment = compile(iterator, new Stack<>());
-        iterator.eat(')');
+    private Fragment compileGroup(Ast.Group group) {
+        Fragment fragment = compile(group.getChild());
+
+        Node open = new Node();
+        open.addTransition(Transition.save(2 * group.getIndex(), fragment.getStart()));
 
-        return fragment;
+        Node close = new Node();
+        Transition closing = Transition.save(2 * group.getIndex() + 1, null);
+        close.addTransition(closing);
+        fragment.getDangling().forEach(dangling -> dangling.setDestination(close));
+
+        return new Fragment(open, Collections.singletonList(closing));
     }
 
-    private void compileQuantifier(StringLookAhead iterator, Stack<Fragment> fragments) {
-        Fragment fragment = fragments.pop();
+    private Fragment empty() {
+        Node empty = new Node();
+        Transition dangling = new Transition(Transition.EMPTY_TRANSITION, null);
+        empty.addTransition(dangling);
+        return new Fragment(empty, Collections.singletonList(dangling));
+    }
 
+    private Fragment quantify(Fragment fragment, char quantifier) {
         Node n = new Node();
         Transition nextDangling = new Transition(Transition.EMPTY_TRANSITION, null);
-        n.addTransition(nextDangling);
         n.addTransition(new Transition(Transition.EMPTY_TRANSITION, fragment.getStart()));
+        n.addTransition(nextDangling);
 
-        if (iterator.current() != '?') {
+        if (quantifier != '?') {
             fragment.getDangling().forEach(dangling -> dangling.setDestination(n));
         }
 
-        if (iterator.current() == '*') {
-            fragments.push(new Fragment(n, Collections.singletonList(nextDangling)));
-        } else if (iterator.current() == '+') {
-            fragments.push(new Fragment(fragment.getStart(), Collections.singletonList(nextDangling)));
-        } else if (iterator.current() == '?') {
+        if (quantifier == '*') {
+            return new Fragment(n, Collections.singletonList(nextDangling));
+        } else if (quantifier == '+') {
+            return new Fragment(fragment.getStart(), Collections.singletonList(nextDangling));
+        } else {
             List<Transition> danglings = new ArrayList<>();
             danglings.add(nextDangling);
             danglings.addAll(fragment.getDangling());
-            fragments.push(new Fragment(n, danglings));
+            return new Fragment(n, danglings);
         }
-
-        iterator.proceedPosition();
     }
 
-    private void compileOr(StringLookAhead iterator, Stack<Fragment> fragments) {
-        iterator.eat('|');
-
-        if (iterator.current() == '(') {
-            fragments.push(compileGroup(iterator));
-            if (isQuantifier(iterator.current())) {
-                compileQuantifier(iterator, fragments);
-            }
-        } else {
-            fragments.push(compile(iterator, new Stack<>()));
+    /**
+     * Compiles "{n}", "{n,}" and "{n,m}" by chaining copies of the already compiled fragment. The optional copies are
+     * nested as in "(x(x)?)?" instead of "x?x?", so the number of empty transitions grows linearly with the bound.
+     * The copies cannot be shared: the automata have no counters, so they need a state for every count, and nested
+     * repetitions multiply up to {@link Options#getMaxNfaSize()}.
+     *
+     * @param max the maximum number of repetitions, or -1 if unbounded
+     */
+    private Fragment repeat(Fragment fragment, int min, int max) {
+        int count = max < 0 ? Math.max(min, 1) : max;
+        if (count == 0) {
+            return empty();
         }
 
-        pushOr(fragments);
-    }
-
-    private void pushOr(Stack<Fragment> fragments) {
-        Fragment right = fragments.pop();
-        Fragment left = fragments.pop();
-
-        Node split = new Node();
-        split.addTransition(new Transition(Transition.EMPTY_TRANSITION, left.getStart()));
-        split.addTransition(new Transition(Transition.EMPTY_TRANSITION, right.getStart()));
-
-        List<Transition> nextDanglings = new ArrayList<>(left.getDangling());
-        nextDanglings.addAll(right.getDangling());
-
-        fragments.push(new Fragment(split, nextDanglings));
-    }
-
-    private void readConcat(StringLookAhead iterator, Stack<Fragment> fragments) {
-        if (iterator.current() == '\\' && iterator.hasNext() && MetaCharacters.exists(iterator.next())) {
-            iterator.proceedPosition();
-
-            Node start = new Node();
-            Transition transition = new Transition(MetaCharacters.getHandler(iterator.current()), null);
-            start.addTransition(transition);
-
-            Fragment fragment = new Fragment(start, Collections.singletonList(transition));
-            fragments.push(fragment);
-        } else {
-            boolean escaped = removeEscaping(iterator);
-
-            Node start = new Node();
-            Character transitionChar = iterator.current();
-            Transition transition = new Transition(compileMatcher(transitionChar, escaped), null);
-            start.addTransition(transition);
-
-            Fragment fragment = new Fragment(start, Collections.singletonList(transition));
-            fragments.push(fragment);
+        List<Fragment> copies = new ArrayList<>();
+        copies.add(fragment);
+        for (int i = 1; i < count; i++) {
+            copies.add(fragment.copy());
         }
 
-        iterator.proceedPosition();
+        if (max < 0) {
+            Fragment last = quantify(copies.get(count - 1), min == 0 ? '*' : '+');
+            copies.set(count - 1, last);
+            return concat(copies, 0, count);
+        }
 
-        if (iterator.hasMore()) {
-            if (isQuantifier(iterator.current())) {
-                compileQuantifier(iterator, fragments);
+        Fragment optional = null;
+        for (int i = max - 1; i >= min; i--) {
+            Fragment copy = copies.get(i);
+            if (optional != null) {
+                copy = concat(copy, optional);
             }
+            optional = quantify(copy, '?');
         }
-    }
 
-    private boolean removeEscaping(StringLookAhead iterator) {
-        if (iterator.current() == '\\') {
-            iterator.proceedPosition();
-            return true;
+        Fragment required = min > 0 ? concat(copies, 0, min) : null;
+        if (required == null) {
+            return optional;
         }
-        return false;
+        return optional == null ? required : concat(required, optional);
     }
 
-    private Predicate<Character> compileMatcher(Character character, boolean escaped) {
-        if (character == '.' && !escaped) {
-            // TODO check correct semantics
-            return (c) -> !c.equals('\n');
-        } else {
-            return (c) -> c.equals(character);
+    private Fragment concat(List<Fragment> fragments, int from, int to) {
+        Fragment result = fragments.get(from);
+        for (int i = from + 1; i < to; i++) {
+            result = concat(result, fragments.get(i));
         }
+        return result;
     }
 
-    private void pushConcat(Stack<Fragment> fragments) {
-        Fragment second = fragments.pop();
-        Fragment first = fragments.isEmpty() ? null : fragments.pop();
-
-        if (first == null) {
-            first = new Fragment(second.getStart(), second.getDangling());
-        } else {
-            first.getDangling().forEach(dangling -> dangling.setDestination(second.getStart()));
-            first.setDangling(second.getDangling());
-        }
-
-        fragments.push(first);
+    private Fragment concat(Fragment first, Fragment second) {
+        first.getDangling().forEach(dangling -> dangling.setDestination(second.getStart()));
+        return new Fragment(first.getStart(), second.getDangling());
     }
 }
@@ -0,0 +1,186 @@
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Fully constructed and minimized DFA, built ahead of time by {@link DfaBuilder}. Characters are first mapped to their
+ * equivalence class, then every character costs a single lookup in a dense transition table, without branching on the
+ * structure of the {@link Program}.
+ * <p>
+ * States are stored premultiplied by the number of classes, so the next state is {@code table[state + class]}. State
+ * 0 is the dead state, from which no match is possible.
+ */
+public class DenseDfa implements Automaton {
+    public static final int DEFAULT_MAX_STATES = 10_000;
+
+    private static final int MERGE_INTERVAL = 64;
+
+    private final char[] classMap;
+    private final int classCount;
+    private final int[] table;
+    private final boolean[] accepting;
+    private final int start;
+
+    public DenseDfa(char[] classMap, int classCount, int[] table, boolean[] accepting, int start) {
+        this.classMap = classMap;
+        this.classCount = classCount;
+        this.table = table;
+        this.accepting = accepting;
+        this.start = start;
+    }
+
+    @Override
+    public boolean test(CharSequence s) {
+        int[] table = this.table;
+        char[] classMap = this.classMap;
+        int state = start;
+
+        for (int i = 0; i < s.length(); i++) {
+            state = table[state + classMap[s.charAt(i)]];
+            if (state == 0) {
+                return false;
+            }
+        }
+        return accepting[state / classCount];
+    }
+
+    /**
+     * Runs the characters between {@code from} and {@code to} from every state at once. Runs which reach the same
+     * state are merged, so the work per character shrinks to the number of distinct states still reachable.
+     *
+     * @return the index of the state reached from every state, by the index of the state
+     */
+    public int[] transitions(CharSequence s, int from, int to) {
+        int[] table = this.table;
+        char[] classMap = this.classMap;
+        int stateCount = stateCount();
+        int[] runOf = new int[stateCount];
+        int[] runs = new int[stateCount];
+        int runCount = stateCount;
+        for (int state = 0; state < stateCount; state++) {
+            runOf[state] = state;
+            runs[state] = state * classCount;
+        }
+
+        int[] seen = new int[stateCount];
+        int[] mergedInto = new int[stateCount];
+        Arrays.fill(seen, -1);
+        for (int i = from; i < to; ) {
+            for (int end = Math.min(to, i + MERGE_INTERVAL); i < end; i++) {
+                int c = classMap[s.charAt(i)];
+                for (int r = 0; r < runCount; r++) {
+                    runs[r] = table[runs[r] + c];
+                }
+            }
+
+            int merged = 0;
+            for (int r = 0; r < runCount; r++) {
+                int state = runs[r] / classCount;
+                if (seen[state] < 0) {
+                    seen[state] = merged;
+                    runs[merged++] = runs[r];
+                }
+                mergedInto[r] = seen[state];
+            }
+            for (int r = 0; r < merged; r++) {
+                seen[runs[r] / classCount] = -1;
+            }
+            if (merged < runCount) {
+                for (int state = 0; state < stateCount; state++) {
+                    runOf[state] = mergedInto[runOf[state]];
+                }
+                runCount = merged;
+            }
+        }
+
+        for (int state = 0; state < stateCount; state++) {
+            runOf[state] = runs[runOf[state]] / classCount;
+        }
+        return runOf;
+    }
+
+    /**
+     * Writes the tables. The class map is written as the first character of every class.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        char[] representatives = new char[classCount];
+        for (int c = classMap.length - 1; c >= 0; c--) {
+            representatives[classMap[c]] = (char) c;
+        }
+        BinaryFormat.writeChars(out, representatives);
+        out.writeInt(start);
+        BinaryFormat.writeInts(out, table);
+        out.writeInt(accepting.length);
+        for (boolean accept : accepting) {
+            out.writeBoolean(accept);
+        }
+    }
+
+    public static DenseDfa readFrom(ByteBuffer in) throws IOException {
+        char[] representatives = BinaryFormat.readChars(in);
+        int start = BinaryFormat.readInt(in);
+        int[] table = BinaryFormat.readInts(in);
+        int stateCount = BinaryFormat.readInt(in);
+        int classCount = representatives.length;
+        if (classCount == 0 || representatives[0] != 0 || stateCount < 0 || stateCount > in.remaining()
+                || table.length != (long) stateCount * classCount || start < 0 || start >= table.length
+                || start % classCount != 0) {
+            throw new StreamCorruptedException("Invalid DFA");
+        }
+        boolean[] accepting = new boolean[stateCount];
+        for (int i = 0; i < accepting.length; i++) {
+            accepting[i] = in.get() != 0;
+        }
+        for (int target : table) {
+            if (target < 0 || target >= table.length || target % classCount != 0) {
+                throw new StreamCorruptedException("Invalid DFA transition");
+            }
+        }
+
+        char[] classMap = new char[Character.MAX_VALUE + 1];
+        int c = 0;
+        for (int i = 0; i < classCount; i++) {
+            int end = i + 1 < classCount ? representatives[i + 1] : classMap.length;
+            if (end <= c && i + 1 < classCount) {
+                throw new StreamCorruptedException("Invalid DFA classes");
+            }
+            for (; c < end; c++) {
+                classMap[c] = (char) i;
+            }
+        }
+        return new DenseDfa(classMap, classCount, table, accepting, start);
+    }
+
+    public int stateCount() {
+        return accepting.length;
+    }
+
+    public int classCount() {
+        return classCount;
+    }
+
+    public int classOf(char c) {
+        return classMap[c];
+    }
+
+    /**
+     * @return the state reached from {@code state} over the characters of the given class, as an index rather than
+     * premultiplied
+     */
+    public int next(int state, int characterClass) {
+        return table[state * classCount + characterClass] / classCount;
+    }
+
+    public boolean isAccepting(int state) {
+        return accepting[state];
+    }
+
+    /**
+     * @return the index of the start state
+     */
+    public int getStart() {
+        return start / classCount;
+    }
+}
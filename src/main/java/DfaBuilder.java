@@ -0,0 +1,258 @@
+import java.util.*;
+
+/**
+ * Builds a {@link DenseDfa} for matching the whole input against a {@link Program}.
+ * <p>
+ * The characters are partitioned into classes which no instruction can tell apart, so the table needs one column per
+ * class instead of one per character. The subset construction then explores every reachable set of instructions and
+ * gives up once more than {@code maxStates} sets were found, or the table would exceed {@link #MAX_TABLE_SIZE}
+ * entries. Finally the states are minimized with Hopcroft's partition refinement, which only ever puts the smaller
+ * half of a split block into the work list.
+ */
+public class DfaBuilder {
+    private static final int ALPHABET = Character.MAX_VALUE + 1;
+    private static final long MAX_TABLE_SIZE = 1 << 22;
+
+    private final Program program;
+    private final int maxStates;
+
+    private char[] classMap;
+    private char[] representatives;
+    private int classCount;
+
+    public DfaBuilder(Program program, int maxStates) {
+        this.program = program;
+        this.maxStates = maxStates;
+    }
+
+    /**
+     * @return the minimized DFA, or null if it would have more than {@code maxStates} states before minimization or
+     * a table larger than {@link #MAX_TABLE_SIZE}
+     */
+    public DenseDfa build() {
+        computeClasses();
+
+        Map<LazyDfa.StateKey, Integer> ids = new HashMap<>();
+        List<int[]> sets = new ArrayList<>();
+        int[] table = new int[16 * classCount];
+        SparseSet set = new SparseSet(program.size());
+
+        int dead = id(new int[0], ids, sets);
+        set.clear();
+        addAll(set, program.closure(program.getStart()));
+        int start = id(sorted(set), ids, sets);
+
+        for (int state = 0; state < sets.size(); state++) {
+            if (sets.size() > maxStates || (long) sets.size() * classCount > MAX_TABLE_SIZE) {
+                return null;
+            }
+            if ((state + 1) * classCount > table.length) {
+                table = Arrays.copyOf(table, 2 * table.length);
+            }
+
+            for (int c = 0; c < classCount; c++) {
+                set.clear();
+                for (int pc : sets.get(state)) {
+                    if (program.matches(pc, representatives[c])) {
+                        addAll(set, program.closure(program.next(pc)));
+                    }
+                }
+                table[state * classCount + c] = id(sorted(set), ids, sets);
+            }
+        }
+
+        boolean[] accepting = new boolean[sets.size()];
+        for (int state = 0; state < sets.size(); state++) {
+            for (int pc : sets.get(state)) {
+                accepting[state] |= program.op(pc) == Program.MATCH;
+            }
+        }
+
+        return minimize(sets.size(), table, accepting, dead, start);
+    }
+
+    private void computeClasses() {
+        boolean[] boundaries = new boolean[ALPHABET + 1];
+        for (int pc = 0; pc < program.size(); pc++) {
+            if (program.isConsuming(pc)) {
+                CharClass consumed = program.toCharClass(pc);
+                for (int i = 0; i < consumed.rangeCount(); i++) {
+                    boundaries[consumed.from(i)] = true;
+                    boundaries[consumed.to(i) + 1] = true;
+                }
+            }
+        }
+
+        classMap = new char[ALPHABET];
+        representatives = new char[ALPHABET];
+        classCount = 0;
+        for (int c = 0; c < ALPHABET; c++) {
+            if (c == 0 || boundaries[c]) {
+                representatives[classCount++] = (char) c;
+            }
+            classMap[c] = (char) (classCount - 1);
+        }
+        representatives = Arrays.copyOf(representatives, classCount);
+    }
+
+    private int id(int[] pcs, Map<LazyDfa.StateKey, Integer> ids, List<int[]> sets) {
+        return ids.computeIfAbsent(new LazyDfa.StateKey(pcs), key -> {
+            sets.add(pcs);
+            return sets.size() - 1;
+        });
+    }
+
+    private static void addAll(SparseSet set, int[] closure) {
+        for (int pc : closure) {
+            set.add(pc);
+        }
+    }
+
+    private static int[] sorted(SparseSet set) {
+        int[] pcs = new int[set.size()];
+        for (int i = 0; i < pcs.length; i++) {
+            pcs[i] = set.get(i);
+        }
+        Arrays.sort(pcs);
+        return pcs;
+    }
+
+    /**
+     * Hopcroft's algorithm. The blocks of the partition are contiguous ranges of {@code elements}; while splitting a
+     * block, its marked states are moved to the front of its range.
+     */
+    private DenseDfa minimize(int n, int[] table, boolean[] accepting, int dead, int start) {
+        int k = classCount;
+
+        int[] predecessorStart = new int[k * n + 1];
+        for (int s = 0; s < n; s++) {
+            for (int c = 0; c < k; c++) {
+                predecessorStart[c * n + table[s * k + c] + 1]++;
+            }
+        }
+        for (int i = 0; i < k * n; i++) {
+            predecessorStart[i + 1] += predecessorStart[i];
+        }
+        int[] predecessors = new int[k * n];
+        int[] fill = Arrays.copyOf(predecessorStart, k * n);
+        for (int s = 0; s < n; s++) {
+            for (int c = 0; c < k; c++) {
+                predecessors[fill[c * n + table[s * k + c]]++] = s;
+            }
+        }
+
+        int[] elements = new int[n];
+        int[] location = new int[n];
+        int[] block = new int[n];
+        int[] first = new int[n];
+        int[] end = new int[n];
+        int[] marked = new int[n];
+        int blockCount = 0;
+
+        int size = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            int blockStart = size;
+            for (int s = 0; s < n; s++) {
+                if (accepting[s] == (pass == 1)) {
+                    location[s] = size;
+                    elements[size++] = s;
+                    block[s] = blockCount;
+                }
+            }
+            if (size > blockStart) {
+                first[blockCount] = blockStart;
+                end[blockCount] = size;
+                marked[blockCount] = blockStart;
+                blockCount++;
+            }
+        }
+
+        int[] work = new int[n];
+        boolean[] inWork = new boolean[n];
+        int top = 0;
+        int smaller = blockCount == 2 && end[1] - first[1] < end[0] - first[0] ? 1 : 0;
+        work[top++] = smaller;
+        inWork[smaller] = true;
+
+        int[] splitter = new int[n];
+        int[] touched = new int[n];
+        while (top > 0) {
+            int splitterBlock = work[--top];
+            inWork[splitterBlock] = false;
+            int splitterSize = end[splitterBlock] - first[splitterBlock];
+            System.arraycopy(elements, first[splitterBlock], splitter, 0, splitterSize);
+
+            for (int c = 0; c < k; c++) {
+                int touchedCount = 0;
+                for (int i = 0; i < splitterSize; i++) {
+                    int target = splitter[i];
+                    for (int p = predecessorStart[c * n + target]; p < predecessorStart[c * n + target + 1]; p++) {
+                        int s = predecessors[p];
+                        int b = block[s];
+                        if (location[s] < marked[b]) {
+                            continue;
+                        }
+                        if (marked[b] == first[b]) {
+                            touched[touchedCount++] = b;
+                        }
+                        int other = elements[marked[b]];
+                        elements[location[s]] = other;
+                        location[other] = location[s];
+                        elements[marked[b]] = s;
+                        location[s] = marked[b];
+                        marked[b]++;
+                    }
+                }
+
+                for (int t = 0; t < touchedCount; t++) {
+                    int b = touched[t];
+                    if (marked[b] == end[b]) {
+                        marked[b] = first[b];
+                        continue;
+                    }
+
+                    int split = blockCount++;
+                    first[split] = first[b];
+                    end[split] = marked[b];
+                    marked[split] = first[split];
+                    first[b] = end[split];
+                    marked[b] = first[b];
+                    for (int i = first[split]; i < end[split]; i++) {
+                        block[elements[i]] = split;
+                    }
+
+                    if (inWork[b]) {
+                        work[top++] = split;
+                        inWork[split] = true;
+                    } else {
+                        int add = end[split] - first[split] < end[b] - first[b] ? split : b;
+                        work[top++] = add;
+                        inWork[add] = true;
+                    }
+                }
+            }
+        }
+
+        int[] ids = new int[blockCount];
+        Arrays.fill(ids, -1);
+        ids[block[dead]] = 0;
+        int stateCount = 1;
+        for (int b = 0; b < blockCount; b++) {
+            if (ids[b] < 0) {
+                ids[b] = stateCount++;
+            }
+        }
+
+        int[] minimized = new int[stateCount * k];
+        boolean[] minimizedAccepting = new boolean[stateCount];
+        for (int b = 0; b < blockCount; b++) {
+            int representative = elements[first[b]];
+            minimizedAccepting[ids[b]] = accepting[representative];
+            for (int c = 0; c < k; c++) {
+                minimized[ids[b] * k + c] = ids[block[table[representative * k + c]]] * k;
+            }
+        }
+
+        return new DenseDfa(classMap, k, minimized, minimizedAccepting, ids[block[start]] * k);
+    }
+}
@@ -1,4 +1,4 @@
-import java.util.List;
+import java.util.*;
 
 public class Fragment {
     private Node start;
@@ -20,4 +20,40 @@ public class Fragment {
     public void setDangling(List<Transition> dangling) {
         this.dangling = dangling;
     }
+
+    /**
+     * Copies all nodes and transitions of this fragment. The copy has its own dangling transitions, so it has to be
+     * taken before the dangling transitions of this fragment are connected.
+     */
+    public Fragment copy() {
+        Map<Node, Node> copies = new HashMap<>();
+        List<Transition> copiedDangling = new ArrayList<>();
+        Deque<Node> queue = new ArrayDeque<>();
+        copies.put(start, new Node());
+        queue.add(start);
+
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            for (Transition transition : node.getTransitions()) {
+                Node destination = transition.getDestination();
+                Node copiedDestination = null;
+                if (destination != null) {
+                    copiedDestination = copies.get(destination);
+                    if (copiedDestination == null) {
+                        copiedDestination = new Node();
+                        copies.put(destination, copiedDestination);
+                        queue.add(destination);
+                    }
+                }
+
+                Transition copy = transition.copy(copiedDestination);
+                copies.get(node).addTransition(copy);
+                if (destination == null) {
+                    copiedDangling.add(copy);
+                }
+            }
+        }
+
+        return new Fragment(copies.get(start), copiedDangling);
+    }
 }
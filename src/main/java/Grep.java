@@ -0,0 +1,254 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Streams an input through an unanchored automaton and reports the lines containing a match. The input is read into a
+ * single fixed-size buffer and the automaton state is kept across buffer boundaries, so neither lines nor the whole
+ * input are ever materialized as strings.
+ * <p>
+ * Byte inputs are decoded chunk by chunk, so all offsets count decoded chars.
+ */
+public class Grep {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int MIN_MAPPED_REMAINING = 16;
+
+    private final LazyDfa dfa;
+    private final int bufferSize;
+
+    public Grep(Matcher matcher) {
+        this(matcher, new Options());
+    }
+
+    public Grep(Matcher matcher, Options options) {
+        this.dfa = new LazyDfa(matcher.getProgram(), options.getDfaCacheSize(), true);
+        this.bufferSize = options.getBufferSize();
+    }
+
+    public Stream<LineMatch> lines(Reader reader) {
+        return stream(reader::read);
+    }
+
+    public Stream<LineMatch> lines(ReadableByteChannel channel, Charset charset) {
+        return stream(new ChannelSource(channel, charset, bufferSize));
+    }
+
+    /**
+     * Scans {@code size} bytes of the file starting at {@code position} through memory mappings of the file.
+     */
+    public Stream<LineMatch> lines(FileChannel channel, long position, long size, Charset charset) {
+        return stream(new MappedSource(channel, position, size, charset));
+    }
+
+    private Stream<LineMatch> stream(Source source) {
+        Iterator<LineMatch> iterator = new LineIterator(source, new char[bufferSize]);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    private interface Source {
+        /**
+         * @return the number of chars read into the buffer, or -1 at the end of the input
+         */
+        int read(char[] buffer, int offset, int length) throws IOException;
+    }
+
+    private class LineIterator implements Iterator<LineMatch> {
+        private final Source source;
+        private final char[] buffer;
+        private final LazyDfa.Cursor cursor;
+        private int position = 0;
+        private int limit = 0;
+        private long bufferOffset = 0;
+        private long lineNumber = 1;
+        private long lineStart = 0;
+        private boolean matched;
+        private boolean finished = false;
+        private LineMatch next;
+
+        LineIterator(Source source, char[] buffer) {
+            this.source = source;
+            this.buffer = buffer;
+            this.cursor = dfa.cursor();
+            this.matched = dfa.isAccepting(cursor);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !finished) {
+                next = advance();
+            }
+            return next != null;
+        }
+
+        @Override
+        public LineMatch next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            LineMatch line = next;
+            next = null;
+            return line;
+        }
+
+        private LineMatch advance() {
+            while (true) {
+                if (position == limit && !fill()) {
+                    finished = true;
+                    long end = bufferOffset + limit;
+                    return matched && end > lineStart ? new LineMatch(lineNumber, lineStart, end) : null;
+                }
+
+                if (matched) {
+                    while (position < limit && buffer[position] != '\n') {
+                        position++;
+                    }
+                } else {
+                    while (position < limit && buffer[position] != '\n') {
+                        dfa.advance(cursor, buffer[position++]);
+                        if (dfa.isAccepting(cursor)) {
+                            matched = true;
+                            break;
+                        }
+                    }
+                }
+
+                if (position < limit && buffer[position] == '\n') {
+                    LineMatch line = matched ? new LineMatch(lineNumber, lineStart, bufferOffset + position) : null;
+                    position++;
+                    lineNumber++;
+                    lineStart = bufferOffset + position;
+                    dfa.reset(cursor);
+                    matched = dfa.isAccepting(cursor);
+
+                    if (line != null) {
+                        return line;
+                    }
+                }
+            }
+        }
+
+        private boolean fill() {
+            bufferOffset += limit;
+            position = 0;
+            limit = 0;
+            try {
+                int read;
+                do {
+                    read = source.read(buffer, 0, buffer.length);
+                } while (read == 0);
+                if (read < 0) {
+                    return false;
+                }
+                limit = read;
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static CharsetDecoder decoder(Charset charset) {
+        return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    private static class ChannelSource implements Source {
+        private final ReadableByteChannel channel;
+        private final CharsetDecoder decoder;
+        private final ByteBuffer bytes;
+        private boolean endOfInput = false;
+        private boolean flushed = false;
+
+        ChannelSource(ReadableByteChannel channel, Charset charset, int bufferSize) {
+            this.channel = channel;
+            this.decoder = decoder(charset);
+            this.bytes = ByteBuffer.allocate(bufferSize);
+            this.bytes.flip();
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            CharBuffer chars = CharBuffer.wrap(buffer, offset, length);
+
+            while (chars.position() == offset && !flushed) {
+                if (!endOfInput) {
+                    bytes.compact();
+                    endOfInput = channel.read(bytes) < 0;
+                    bytes.flip();
+                }
+                decoder.decode(bytes, chars, endOfInput);
+                if (endOfInput && !bytes.hasRemaining()) {
+                    decoder.flush(chars);
+                    flushed = true;
+                }
+            }
+
+            int read = chars.position() - offset;
+            return read == 0 && flushed ? -1 : read;
+        }
+    }
+
+    private static class MappedSource implements Source {
+        private final FileChannel channel;
+        private final CharsetDecoder decoder;
+        private final long end;
+        private long position;
+        private ByteBuffer mapped;
+        private boolean flushed = false;
+
+        MappedSource(FileChannel channel, long position, long size, Charset charset) {
+            this.channel = channel;
+            this.decoder = decoder(charset);
+            this.position = position;
+            this.end = position + size;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            CharBuffer chars = CharBuffer.wrap(buffer, offset, length);
+
+            while (chars.position() == offset && !flushed) {
+                if (mapped == null || (mapped.remaining() < MIN_MAPPED_REMAINING && !isLastWindow())) {
+                    map();
+                }
+                boolean endOfInput = isLastWindow();
+                decoder.decode(mapped, chars, endOfInput);
+                if (endOfInput && !mapped.hasRemaining()) {
+                    decoder.flush(chars);
+                    flushed = true;
+                }
+            }
+
+            int read = chars.position() - offset;
+            return read == 0 && flushed ? -1 : read;
+        }
+
+        private boolean isLastWindow() {
+            return position + mapped.limit() >= end;
+        }
+
+        private void map() throws IOException {
+            if (mapped != null) {
+                position += mapped.position();
+            }
+            long size = Math.min(end - position, Integer.MAX_VALUE);
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        }
+    }
+}
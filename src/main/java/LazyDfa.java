@@ -0,0 +1,635 @@
+import java.util.*;
+
+/**
+ * Deterministic automaton which is built on demand from the sets of {@link Program} instructions reached while
+ * matching. Every DFA state is created at most once per cache generation, so hot patterns end up with a single table
+ * lookup per character.
+ * <p>
+ * The states are cached per thread, so a DFA can be shared by any number of threads without locking. Every cache is
+ * bounded by {@link Options#getDfaCacheSize()}. If it runs full it is flushed and rebuilt. If it has to be flushed
+ * again before enough characters were scanned to amortize the rebuilt states, the DFA gives up and the caller falls
+ * back to the NFA simulation.
+ * <p>
+ * ASCII transitions are kept in a table per state. The other characters are grouped into the classes which no
+ * instruction of the program tells apart, and a state gets a table over these classes on its first transition on a
+ * non-ASCII character. The table is charged to the cache like the states.
+ * <p>
+ * An unanchored DFA restarts the program at every position, so its states accept whenever a match ends there, no
+ * matter where it started. Programs combining several patterns get the accepted pattern ids per state.
+ * <p>
+ * With {@link Statistics}, {@link #test} and {@link #scan} report the transitions taken from the cache, the states
+ * built and the flushes. Cache hits are counted as the characters scanned minus the misses, so the loops pay nothing.
+ * The NFA states active at once are reported as the most instructions in a state built during the call.
+ */
+public class LazyDfa {
+    public static final long DEFAULT_CACHE_SIZE = 1 << 20;
+
+    public static final int NO_MATCH = 0;
+    public static final int MATCH = 1;
+    public static final int FAILED = -1;
+    public static final int FAILED_SCAN = -2;
+
+    private static final int ASCII = 128;
+    private static final int MIN_CHARS_PER_STATE = 10;
+    private static final long STATE_OVERHEAD = 96 + 16 + ASCII * 4;
+    private static final long PC_OVERHEAD = 4;
+    private static final long TABLE_OVERHEAD = 16;
+
+    private static final DfaState DEAD = new DfaState(new int[0], new int[0]);
+
+    private final Program program;
+    private final long cacheSize;
+    private final boolean unanchored;
+    private final Statistics statistics;
+    private final char[] boundaries;
+    private final ThreadLocal<Cache> cache;
+
+    public LazyDfa(Program program, long cacheSize) {
+        this(program, cacheSize, false);
+    }
+
+    public LazyDfa(Program program, long cacheSize, boolean unanchored) {
+        this(program, cacheSize, unanchored, null);
+    }
+
+    /**
+     * @param statistics receives the cache hits, misses and flushes, or null
+     */
+    public LazyDfa(Program program, long cacheSize, boolean unanchored, Statistics statistics) {
+        this.program = program;
+        this.cacheSize = cacheSize;
+        this.unanchored = unanchored;
+        this.statistics = statistics;
+        this.boundaries = boundaries(program);
+        this.cache = ThreadLocal.withInitial(() -> new Cache(program.size()));
+    }
+
+    /**
+     * @return the sorted first characters above ASCII of the non-ASCII classes, except the one starting at
+     * {@code ASCII}
+     */
+    private static char[] boundaries(Program program) {
+        BitSet boundaries = new BitSet();
+        for (int pc = 0; pc < program.size(); pc++) {
+            if (program.isConsuming(pc)) {
+                CharClass consumed = program.toCharClass(pc);
+                for (int i = 0; i < consumed.rangeCount(); i++) {
+                    boundaries.set(consumed.from(i));
+                    boundaries.set(consumed.to(i) + 1);
+                }
+            }
+        }
+        boundaries.clear(0, ASCII + 1);
+        boundaries.clear(Character.MAX_VALUE + 1);
+
+        char[] sorted = new char[boundaries.cardinality()];
+        for (int c = boundaries.nextSetBit(0), i = 0; c >= 0; c = boundaries.nextSetBit(c + 1)) {
+            sorted[i++] = (char) c;
+        }
+        return sorted;
+    }
+
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    public int test(CharSequence s) {
+        return test(s, cache.get());
+    }
+
+    /**
+     * @return a handle for testing many inputs on the calling thread, which looks up the cache of the thread once
+     */
+    public Batch batch() {
+        return new Batch(cache.get());
+    }
+
+    /**
+     * Tests on the thread which created it, with that thread's cache.
+     */
+    public class Batch {
+        private final Cache cache;
+
+        private Batch(Cache cache) {
+            this.cache = cache;
+        }
+
+        /**
+         * @see LazyDfa#test(CharSequence)
+         */
+        public int test(CharSequence s) {
+            return LazyDfa.this.test(s, cache);
+        }
+    }
+
+    private int test(CharSequence s, Cache cache) {
+        if (statistics == null) {
+            return testInput(s, cache);
+        }
+        long misses = cache.misses;
+        long flushes = cache.flushes;
+        int result = testInput(s, cache);
+        record(cache, misses, flushes);
+        return result;
+    }
+
+    private int testInput(CharSequence s, Cache cache) {
+        DfaState state = startState(cache);
+        int flushedAt = -1;
+
+        for (int i = 0; i < s.length(); i++) {
+            if (state == DEAD) {
+                cache.steps = i;
+                return NO_MATCH;
+            }
+
+            char c = s.charAt(i);
+            DfaState next = next(state, c);
+
+            if (next == null) {
+                int[] pcs = step(state, c, cache);
+                next = lookup(pcs, cache, tableCost(state, c));
+                if (next == null) {
+                    if (flushedAt >= 0 && i - flushedAt < MIN_CHARS_PER_STATE * cache.states.size()) {
+                        cache.steps = i;
+                        return FAILED;
+                    }
+                    cache.flush();
+                    flushedAt = i;
+                    next = intern(pcs, cache);
+                }
+                setNext(state, c, next, cache);
+            }
+
+            state = next;
+        }
+
+        cache.steps = s.length();
+        return state.isAccepting() ? MATCH : NO_MATCH;
+    }
+
+    /**
+     * Scans from {@code from} until the input ends or no match is possible any more. An anchored DFA finds the ends
+     * of the matches starting at {@code from}, an unanchored one the ends of all matches starting at or after it.
+     *
+     * @param earliest whether to stop at the first position at which a match ends
+     * @return the first or the last position at which a match ends, -1 if there is none, or {@link #FAILED_SCAN} if
+     * the cache thrashed
+     */
+    public int scan(CharSequence s, int from, boolean earliest) {
+        Cache cache = this.cache.get();
+        long misses = cache.misses;
+        long flushes = cache.flushes;
+        int end = scan(s, from, startState(cache), cache, earliest);
+        record(cache, misses, flushes);
+        return end;
+    }
+
+    /**
+     * Like {@link #scan(CharSequence, int, boolean)}, but starts in the state of the given instructions, for example
+     * those returned by {@link #statesAt} of another DFA over the same program.
+     */
+    public int scan(CharSequence s, int from, int[] pcs, boolean earliest) {
+        Cache cache = this.cache.get();
+        long misses = cache.misses;
+        long flushes = cache.flushes;
+        int end = scan(s, from, intern(pcs, cache), cache, earliest);
+        record(cache, misses, flushes);
+        return end;
+    }
+
+    /**
+     * @return the sorted instructions of the state reached after scanning from {@code from} to {@code to}, or null if
+     * the cache thrashed
+     */
+    public int[] statesAt(CharSequence s, int from, int to) {
+        Cache cache = this.cache.get();
+        cache.flushedAt = -1;
+        DfaState state = startState(cache);
+        for (int i = from; i < to && state != DEAD; i++) {
+            state = transition(state, s.charAt(i), i, cache);
+            if (state == null) {
+                return null;
+            }
+        }
+        return state.getPcs();
+    }
+
+    private int scan(CharSequence s, int from, DfaState state, Cache cache, boolean earliest) {
+        cache.flushedAt = -1;
+        int end = -1;
+        for (int i = from; ; i++) {
+            if (state.isAccepting()) {
+                end = i;
+                if (earliest) {
+                    cache.steps = i - from;
+                    return end;
+                }
+            }
+            if (i == s.length() || state == DEAD) {
+                cache.steps = i - from;
+                return end;
+            }
+            state = transition(state, s.charAt(i), i, cache);
+            if (state == null) {
+                cache.steps = i - from;
+                return FAILED_SCAN;
+            }
+        }
+    }
+
+    private void record(Cache cache, long misses, long flushes) {
+        if (statistics != null) {
+            long missed = cache.misses - misses;
+            statistics.recordDfa(cache.steps - missed, missed, cache.flushes - flushes, cache.peakPcs);
+            cache.peakPcs = 0;
+        }
+    }
+
+    /**
+     * @return the state after {@code c}, or null if the cache thrashed
+     */
+    private DfaState transition(DfaState state, char c, int position, Cache cache) {
+        DfaState next = next(state, c);
+        if (next == null) {
+            int[] pcs = step(state, c, cache);
+            next = lookup(pcs, cache, tableCost(state, c));
+            if (next == null) {
+                if (cache.flushedAt >= 0 && position - cache.flushedAt < MIN_CHARS_PER_STATE * cache.states.size()) {
+                    return null;
+                }
+                cache.flush();
+                cache.flushedAt = position;
+                next = intern(pcs, cache);
+            }
+            setNext(state, c, next, cache);
+        }
+        return next;
+    }
+
+    /**
+     * Collects the patterns which match {@code s}. An anchored DFA reports the patterns matching the whole input, an
+     * unanchored one the patterns matching anywhere in the input.
+     *
+     * @param stopAtFirst whether to return as soon as the first pattern matched, only supported when unanchored
+     */
+    public int run(CharSequence s, BitSet accepted, boolean stopAtFirst) {
+        Cache cache = this.cache.get();
+        DfaState state = startState(cache);
+        int flushedAt = -1;
+        boolean matched = false;
+
+        for (int i = 0; ; i++) {
+            if (unanchored && state.isAccepting()) {
+                matched = true;
+                for (int pattern : state.getAccepts()) {
+                    accepted.set(pattern);
+                }
+                if (stopAtFirst) {
+                    return MATCH;
+                }
+            }
+
+            if (i == s.length()) {
+                break;
+            }
+            if (state == DEAD) {
+                return NO_MATCH;
+            }
+
+            char c = s.charAt(i);
+            DfaState next = next(state, c);
+
+            if (next == null) {
+                int[] pcs = step(state, c, cache);
+                next = lookup(pcs, cache, tableCost(state, c));
+                if (next == null) {
+                    if (flushedAt >= 0 && i - flushedAt < MIN_CHARS_PER_STATE * cache.states.size()) {
+                        return FAILED;
+                    }
+                    cache.flush();
+                    flushedAt = i;
+                    next = intern(pcs, cache);
+                }
+                setNext(state, c, next, cache);
+            }
+
+            state = next;
+        }
+
+        if (!unanchored) {
+            for (int pattern : state.getAccepts()) {
+                accepted.set(pattern);
+            }
+            return state.isAccepting() ? MATCH : NO_MATCH;
+        }
+        return matched ? MATCH : NO_MATCH;
+    }
+
+    /**
+     * @return the number of states cached for the calling thread
+     */
+    public int size() {
+        return cache.get().states.size();
+    }
+
+    /**
+     * @return the bytes charged to the cache of the calling thread for its states and transition tables
+     */
+    public long usedMemory() {
+        return cache.get().usedMemory;
+    }
+
+    /**
+     * @return a cursor at the start state, for inputs which arrive in pieces. The cursor has its own cache, so it may
+     * be handed between threads as long as only one of them uses it at a time.
+     */
+    public Cursor cursor() {
+        Cursor cursor = new Cursor(new Cache(program.size()), program.size());
+        reset(cursor);
+        return cursor;
+    }
+
+    public void reset(Cursor cursor) {
+        cursor.state = startState(cursor.cache);
+        cursor.position = 0;
+        cursor.flushedAt = -1;
+    }
+
+    /**
+     * Advances the cursor over {@code c}. If the cache thrashes, the cursor continues with the NFA simulation until it
+     * is reset.
+     */
+    public void advance(Cursor cursor, char c) {
+        DfaState state = cursor.state;
+        if (state == null) {
+            cursor.simulate(program, c, unanchored);
+            return;
+        }
+        if (state == DEAD) {
+            cursor.position++;
+            return;
+        }
+
+        Cache cache = cursor.cache;
+        DfaState next = next(state, c);
+        if (next == null) {
+            int[] pcs = step(state, c, cache);
+            next = lookup(pcs, cache, tableCost(state, c));
+            if (next == null) {
+                if (cursor.flushedAt >= 0 && cursor.position - cursor.flushedAt < MIN_CHARS_PER_STATE * cache.states.size()) {
+                    cursor.state = null;
+                    cursor.startSimulation(state.getPcs());
+                    cursor.simulate(program, c, unanchored);
+                    return;
+                }
+                cache.flush();
+                cursor.flushedAt = cursor.position;
+                next = intern(pcs, cache);
+            }
+            setNext(state, c, next, cache);
+        }
+
+        cursor.state = next;
+        cursor.position++;
+    }
+
+    public boolean isAccepting(Cursor cursor) {
+        if (cursor.state == null) {
+            return cursor.isSimulationAccepting(program);
+        }
+        return cursor.state.isAccepting();
+    }
+
+    /**
+     * Position within one scan, either as a DFA state or, after the DFA gave up, as the set of NFA states.
+     */
+    public static class Cursor {
+        private final Cache cache;
+        private DfaState state;
+        private long position;
+        private long flushedAt;
+        private SparseSet current;
+        private SparseSet next;
+
+        private Cursor(Cache cache, int size) {
+            this.cache = cache;
+            current = new SparseSet(size);
+            next = new SparseSet(size);
+        }
+
+        private void startSimulation(int[] pcs) {
+            current.clear();
+            for (int pc : pcs) {
+                current.add(pc);
+            }
+        }
+
+        private void simulate(Program program, char c, boolean unanchored) {
+            next.clear();
+            for (int t = 0; t < current.size(); t++) {
+                int pc = current.get(t);
+                if (program.matches(pc, c)) {
+                    addAll(next, program.closure(program.next(pc)));
+                }
+            }
+            if (unanchored) {
+                addAll(next, program.closure(program.getStart()));
+            }
+
+            SparseSet swap = current;
+            current = next;
+            next = swap;
+            position++;
+        }
+
+        private boolean isSimulationAccepting(Program program) {
+            for (int t = 0; t < current.size(); t++) {
+                if (program.op(current.get(t)) == Program.MATCH) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private DfaState startState(Cache cache) {
+        if (cache.start == null) {
+            SparseSet set = cache.set;
+            set.clear();
+            addAll(set, program.closure(program.getStart()));
+            cache.start = intern(sorted(set), cache);
+        }
+        return cache.start;
+    }
+
+    private int[] step(DfaState state, char c, Cache cache) {
+        SparseSet set = cache.set;
+        set.clear();
+        cache.misses++;
+
+        for (int pc : state.getPcs()) {
+            if (program.matches(pc, c)) {
+                addAll(set, program.closure(program.next(pc)));
+            }
+        }
+        if (unanchored) {
+            addAll(set, program.closure(program.getStart()));
+        }
+        return sorted(set);
+    }
+
+    private static void addAll(SparseSet set, int[] closure) {
+        for (int pc : closure) {
+            set.add(pc);
+        }
+    }
+
+    private int[] sorted(SparseSet set) {
+        int[] pcs = new int[set.size()];
+        for (int i = 0; i < pcs.length; i++) {
+            pcs[i] = set.get(i);
+        }
+        Arrays.sort(pcs);
+        return pcs;
+    }
+
+    /**
+     * @param table the cost of the transition table the transition to the state needs first
+     * @return the cached state for the given instructions, or null if the cache has no room left for the state or the
+     * table
+     */
+    private DfaState lookup(int[] pcs, Cache cache, long table) {
+        DfaState state = pcs.length == 0 ? DEAD : cache.states.get(new StateKey(pcs));
+        long needed = state == null ? table + cost(pcs) : table;
+        if (cache.usedMemory + needed > cacheSize) {
+            return null;
+        }
+        return state != null ? state : intern(pcs, cache);
+    }
+
+    private DfaState intern(int[] pcs, Cache cache) {
+        if (pcs.length == 0) {
+            return DEAD;
+        }
+
+        return cache.states.computeIfAbsent(new StateKey(pcs), key -> {
+            cache.usedMemory += cost(pcs);
+            cache.peakPcs = Math.max(cache.peakPcs, pcs.length);
+            int[] accepts = Arrays.stream(pcs)
+                    .filter(pc -> program.op(pc) == Program.MATCH)
+                    .map(program::arg)
+                    .distinct()
+                    .sorted()
+                    .toArray();
+            return new DfaState(pcs, accepts);
+        });
+    }
+
+    private long cost(int[] pcs) {
+        return STATE_OVERHEAD + PC_OVERHEAD * pcs.length;
+    }
+
+    /**
+     * @return the cost of the table {@code state} needs before it can get a transition on {@code c}
+     */
+    private long tableCost(DfaState state, char c) {
+        return c < ASCII || state.otherNext != null ? 0 : TABLE_OVERHEAD + 4L * (boundaries.length + 1);
+    }
+
+    private DfaState next(DfaState state, char c) {
+        if (c < ASCII) {
+            return state.asciiNext[c];
+        }
+        DfaState[] otherNext = state.otherNext;
+        return otherNext == null ? null : otherNext[classOf(c)];
+    }
+
+    private void setNext(DfaState state, char c, DfaState next, Cache cache) {
+        if (c < ASCII) {
+            state.asciiNext[c] = next;
+            return;
+        }
+        if (state.otherNext == null) {
+            cache.usedMemory += tableCost(state, c);
+            state.otherNext = new DfaState[boundaries.length + 1];
+        }
+        state.otherNext[classOf(c)] = next;
+    }
+
+    /**
+     * @return the index of the non-ASCII class of {@code c}
+     */
+    private int classOf(char c) {
+        int index = Arrays.binarySearch(boundaries, c);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /**
+     * The states built by one thread, or by one cursor.
+     */
+    private static class Cache {
+        private final Map<StateKey, DfaState> states = new HashMap<>();
+        private final SparseSet set;
+        private long usedMemory = 0;
+        private DfaState start;
+        private int flushedAt;
+        private int steps;
+        private long misses;
+        private long flushes;
+        private int peakPcs;
+
+        Cache(int size) {
+            this.set = new SparseSet(size);
+        }
+
+        void flush() {
+            flushes++;
+            states.clear();
+            usedMemory = 0;
+            start = null;
+        }
+    }
+
+    private static class DfaState {
+        private final int[] pcs;
+        private final int[] accepts;
+        private final DfaState[] asciiNext = new DfaState[ASCII];
+        private DfaState[] otherNext;
+
+        DfaState(int[] pcs, int[] accepts) {
+            this.pcs = pcs;
+            this.accepts = accepts;
+        }
+
+        int[] getPcs() {
+            return pcs;
+        }
+
+        int[] getAccepts() {
+            return accepts;
+        }
+
+        boolean isAccepting() {
+            return accepts.length > 0;
+        }
+    }
+
+    static class StateKey {
+        private final int[] pcs;
+
+        StateKey(int[] pcs) {
+            this.pcs = pcs;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StateKey && Arrays.equals(pcs, ((StateKey) o).pcs);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(pcs);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * A line of a streamed input which contains a match. Offsets count chars from the start of the input, the line
+ * terminator is not part of the line.
+ */
+public class LineMatch {
+    private final long number;
+    private final long start;
+    private final long end;
+
+    public LineMatch(long number, long start, long end) {
+        this.number = number;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * @return the line number, starting with 1
+     */
+    public long getNumber() {
+        return number;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof LineMatch)) {
+            return false;
+        }
+        LineMatch other = (LineMatch) o;
+        return number == other.number && start == other.start && end == other.end;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(31 * (31 * number + start) + end);
+    }
+
+    @Override
+    public String toString() {
+        return number + ":[" + start + ", " + end + ")";
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.Arrays;
+
+/**
+ * Finds occurrences of a literal using Boyer-Moore-Horspool. Strings are searched with {@link String#indexOf}, which
+ * is an intrinsic on most JVMs. Byte input is scanned for the rarest byte of the literal with {@link ByteSearch}, and
+ * only the candidates are compared.
+ */
+public class LiteralSearcher {
+    /**
+     * Bytes ordered from the most to the least frequent in text and logs; all others count as rarer still.
+     */
+    private static final String FREQUENT = " etaoinsrhldcu0123456789mfpgwyb.,-:/=_\"'vkETAOINSRHLDCUMFPGWYBVKxjqzXJQZ";
+
+    private final String literal;
+    private final int[] shifts = new int[256];
+    private final int rareOffset;
+
+    public LiteralSearcher(String literal) {
+        this.literal = literal;
+
+        int last = literal.length() - 1;
+        Arrays.fill(shifts, literal.length());
+        for (int i = 0; i < last; i++) {
+            shifts[literal.charAt(i) & 0xff] = last - i;
+        }
+        this.rareOffset = rarest(literal);
+    }
+
+    /**
+     * @return the offset of the rarest char of the literal, or -1 if it cannot occur in byte input
+     */
+    private static int rarest(String literal) {
+        int offset = -1;
+        int rank = -1;
+        for (int i = 0; i < literal.length(); i++) {
+            char c = literal.charAt(i);
+            if (c > 0xff) {
+                return -1;
+            }
+            int index = FREQUENT.indexOf(c);
+            int rarity = index < 0 ? FREQUENT.length() : index;
+            if (rarity > rank) {
+                offset = i;
+                rank = rarity;
+            }
+        }
+        return offset;
+    }
+
+    public String getLiteral() {
+        return literal;
+    }
+
+    /**
+     * @return the first index at or after {@code from} at which the literal occurs, or -1
+     */
+    public int indexOf(CharSequence s, int from) {
+        if (s instanceof String) {
+            return ((String) s).indexOf(literal, from);
+        }
+        if (s instanceof ByteSequence && rareOffset >= 0) {
+            return indexOf((ByteSequence) s, from);
+        }
+
+        int last = literal.length() - 1;
+        for (int i = Math.max(from, 0); i + last < s.length(); i += shifts[s.charAt(i + last) & 0xff]) {
+            int j = last;
+            while (j >= 0 && s.charAt(i + j) == literal.charAt(j)) {
+                j--;
+            }
+            if (j < 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOf(ByteSequence s, int from) {
+        byte rare = (byte) literal.charAt(rareOffset);
+        int end = s.length() - literal.length() + rareOffset;
+        for (int i = Math.max(from, 0) + rareOffset; ; i++) {
+            i = s.indexOf(rare, i);
+            if (i < 0 || i > end) {
+                return -1;
+            }
+            int start = i - rareOffset;
+            int j = 0;
+            while (j < literal.length() && s.charAt(start + j) == literal.charAt(j)) {
+                j++;
+            }
+            if (j == literal.length()) {
+                return start;
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Matches patterns which accept a finite set of literals, such as {@code timeout} or {@code cat|dog|bird}, without
+ * running an automaton over the {@link Program}.
+ * <p>
+ * A single literal is compared with {@link String#contentEquals} and searched with {@link LiteralSearcher}. Several
+ * literals are looked up in a hash set and searched with an Aho-Corasick automaton, which reports for every position
+ * the longest literal ending there. The search keeps scanning until no literal starting at or before the leftmost
+ * start found so far can end, so it reports the same leftmost-longest match as the automata.
+ */
+public class Literals {
+    private static final int MAX_LITERALS = 1000;
+    private static final int MAX_LENGTH = 256;
+    private static final int MAX_CLASS_SIZE = 4;
+    private static final int ASCII = 128;
+
+    private final String literal;
+    private final Set<String> set;
+    private final int minLength;
+    private final int maxLength;
+    private final LiteralSearcher searcher;
+
+    private final int[] asciiClasses;
+    private final Map<Character, Integer> otherClasses;
+    private final int classCount;
+    private final int[] table;
+    private final int[] longest;
+
+    private Literals(List<String> literals) {
+        this.minLength = literals.stream().mapToInt(String::length).min().getAsInt();
+        this.maxLength = literals.stream().mapToInt(String::length).max().getAsInt();
+
+        if (literals.size() == 1) {
+            literal = literals.get(0);
+            set = null;
+            searcher = new LiteralSearcher(literal);
+            asciiClasses = null;
+            otherClasses = null;
+            classCount = 0;
+            table = null;
+            longest = null;
+            return;
+        }
+
+        literal = null;
+        set = new HashSet<>(literals);
+        searcher = null;
+
+        asciiClasses = new int[ASCII];
+        otherClasses = new HashMap<>();
+        int classes = 1;
+        for (String word : literals) {
+            for (int i = 0; i < word.length(); i++) {
+                char c = word.charAt(i);
+                if (classOf(c) == 0) {
+                    if (c < ASCII) {
+                        asciiClasses[c] = classes++;
+                    } else {
+                        otherClasses.put(c, classes++);
+                    }
+                }
+            }
+        }
+        classCount = classes;
+
+        List<int[]> trie = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        trie.add(new int[classCount]);
+        lengths.add(0);
+        for (String word : literals) {
+            int state = 0;
+            for (int i = 0; i < word.length(); i++) {
+                int c = classOf(word.charAt(i));
+                if (trie.get(state)[c] == 0) {
+                    trie.get(state)[c] = trie.size();
+                    trie.add(new int[classCount]);
+                    lengths.add(0);
+                }
+                state = trie.get(state)[c];
+            }
+            lengths.set(state, word.length());
+        }
+
+        table = new int[trie.size() * classCount];
+        longest = new int[trie.size()];
+        int[] fail = new int[trie.size()];
+        int[] queue = new int[trie.size()];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = 0;
+        while (head < tail) {
+            int state = queue[head++];
+            longest[state] = Math.max(lengths.get(state), longest[fail[state]]);
+            for (int c = 0; c < classCount; c++) {
+                int child = trie.get(state)[c];
+                if (child != 0) {
+                    fail[child] = state == 0 ? 0 : table[fail[state] * classCount + c];
+                    table[state * classCount + c] = child;
+                    queue[tail++] = child;
+                } else {
+                    table[state * classCount + c] = state == 0 ? 0 : table[fail[state] * classCount + c];
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the literals matcher for the program, or null if the program accepts infinitely many or too many
+     * strings, the empty string, or has capture groups
+     */
+    public static Literals of(Program program) {
+        if (program.getSlotCount() > 2) {
+            return null;
+        }
+        Set<String> literals = new LinkedHashSet<>();
+        if (!collect(program, program.closure(program.getStart()), new StringBuilder(), literals)
+                || literals.isEmpty() || literals.contains("")) {
+            return null;
+        }
+        return new Literals(new ArrayList<>(literals));
+    }
+
+    /**
+     * Adds every string accepted from the given closure, prefixed with {@code prefix}.
+     *
+     * @return false if the strings get too many or too long
+     */
+    private static boolean collect(Program program, int[] closure, StringBuilder prefix, Set<String> literals) {
+        for (int pc : closure) {
+            if (program.op(pc) == Program.MATCH) {
+                literals.add(prefix.toString());
+                if (literals.size() > MAX_LITERALS) {
+                    return false;
+                }
+            } else if (program.isConsuming(pc)) {
+                char[] chars = smallClass(program, pc);
+                if (chars == null || prefix.length() == MAX_LENGTH) {
+                    return false;
+                }
+                for (char c : chars) {
+                    prefix.append(c);
+                    boolean collected = collect(program, program.closure(program.next(pc)), prefix, literals);
+                    prefix.setLength(prefix.length() - 1);
+                    if (!collected) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the characters consumed by the instruction, or null if there are more than {@link #MAX_CLASS_SIZE}
+     */
+    private static char[] smallClass(Program program, int pc) {
+        if (program.op(pc) == Program.CLASS && !(program.characterClass(program.arg(pc)) instanceof CharClass)) {
+            return null;
+        }
+        CharClass consumed = program.toCharClass(pc);
+        StringBuilder chars = new StringBuilder();
+        for (int i = 0; i < consumed.rangeCount(); i++) {
+            if (consumed.to(i) - consumed.from(i) + chars.length() >= MAX_CLASS_SIZE) {
+                return null;
+            }
+            for (int c = consumed.from(i); c <= consumed.to(i); c++) {
+                chars.append((char) c);
+            }
+        }
+        return chars.toString().toCharArray();
+    }
+
+    /**
+     * @return the literals in no particular order
+     */
+    public Set<String> getLiterals() {
+        return literal != null ? Set.of(literal) : Collections.unmodifiableSet(set);
+    }
+
+    /**
+     * A set of literals runs the input through the Aho-Corasick automaton, which ends in a state with a literal as
+     * long as the input only if the input is that literal. Unlike a hash lookup, this needs no string copy of inputs
+     * such as {@link ByteSequence}.
+     *
+     * @return whether the whole input is one of the literals
+     */
+    public boolean test(CharSequence s) {
+        if (literal != null) {
+            return literal.contentEquals(s);
+        }
+        int length = s.length();
+        if (length < minLength || length > maxLength) {
+            return false;
+        }
+        int state = 0;
+        for (int i = 0; i < length; i++) {
+            state = table[state * classCount + classOf(s.charAt(i))];
+        }
+        return longest[state] == length;
+    }
+
+    /**
+     * @return the leftmost-longest occurrence of a literal starting at or after {@code from}, or null if there is none
+     */
+    public Match find(CharSequence s, int from) {
+        if (literal != null) {
+            int start = searcher.indexOf(s, from);
+            return start < 0 ? null : new Match(start, start + literal.length());
+        }
+
+        int state = 0;
+        int bestStart = -1;
+        int bestEnd = -1;
+        for (int i = Math.max(from, 0); i < s.length(); i++) {
+            if (bestStart >= 0 && i >= bestStart + maxLength) {
+                break;
+            }
+            state = table[state * classCount + classOf(s.charAt(i))];
+            int length = longest[state];
+            if (length > 0 && (bestStart < 0 || i + 1 - length <= bestStart)) {
+                bestStart = i + 1 - length;
+                bestEnd = i + 1;
+            }
+        }
+        return bestStart < 0 ? null : new Match(bestStart, bestEnd);
+    }
+
+    private int classOf(char c) {
+        if (c < ASCII) {
+            return asciiClasses[c];
+        }
+        Integer index = otherClasses.get(c);
+        return index == null ? 0 : index;
+    }
+
+    @Override
+    public String toString() {
+        return literal != null ? literal : Arrays.toString(set.toArray());
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.*;
+
+/**
+ * Lowers the {@link Node}/{@link Transition} graph produced by the {@link Compiler} into a flat {@link Program}. The
+ * nodes are assigned their dense ids on the way.
+ * <p>
+ * A node with a single alternative becomes a single instruction. A node with {@code k} alternatives becomes a chain of
+ * {@code k - 1} {@link Program#SPLIT} instructions followed by one instruction per alternative, where accepting
+ * nodes get an additional {@link Program#MATCH} alternative.
+ */
+public class Lowering {
+    public Program lower(Node nfa) {
+        return lower(nfa, 0);
+    }
+
+    /**
+     * @param groupCount the number of capture groups, which may exceed the groups still present in the graph
+     */
+    public Program lower(Node nfa, int groupCount) {
+        List<Node> nodes = Node.number(nfa);
+        int[] entries = new int[nodes.size()];
+        int size = 0;
+        for (Node node : nodes) {
+            entries[node.getId()] = size;
+            size += blockSize(node);
+        }
+
+        int[] ops = new int[size];
+        int[] args = new int[size];
+        int[] args2 = new int[size];
+        int[] next = new int[size];
+        List<CharMatcher> classes = new ArrayList<>();
+        int slotCount = 2 * (groupCount + 1);
+
+        for (Node node : nodes) {
+            int entry = entries[node.getId()];
+            int alternatives = alternatives(node);
+
+            if (alternatives == 0) {
+                ops[entry] = Program.FAIL;
+                continue;
+            }
+
+            int first = entry + alternatives - 1;
+            for (int i = 0; i < alternatives - 1; i++) {
+                ops[entry + i] = Program.SPLIT;
+                next[entry + i] = first + i;
+                args[entry + i] = i < alternatives - 2 ? entry + i + 1 : first + alternatives - 1;
+            }
+
+            int pc = first;
+            for (Transition transition : node.getTransitions()) {
+                next[pc] = entries[transition.getDestination().getId()];
+                CharMatcher matcher = transition.getMatcher();
+
+                if (transition.getSlot() >= 0) {
+                    ops[pc] = Program.SAVE;
+                    args[pc] = transition.getSlot();
+                    slotCount = Math.max(slotCount, transition.getSlot() + 2 - transition.getSlot() % 2);
+                } else if (transition.isEmpty()) {
+                    ops[pc] = Program.JMP;
+                } else if (isSingleRange(matcher)) {
+                    CharClass range = (CharClass) matcher;
+                    ops[pc] = range.from(0) == range.to(0) ? Program.CHAR : Program.RANGE;
+                    args[pc] = range.from(0);
+                    args2[pc] = range.to(0);
+                } else {
+                    ops[pc] = Program.CLASS;
+                    args[pc] = classes.size();
+                    classes.add(matcher);
+                }
+                pc++;
+            }
+
+            if (node.isEnd()) {
+                ops[pc] = Program.MATCH;
+                args[pc] = node.getPattern();
+            }
+        }
+
+        return new Program(ops, args, args2, next, classes.toArray(new CharMatcher[0]), entries[nfa.getId()], slotCount);
+    }
+
+    private boolean isSingleRange(CharMatcher matcher) {
+        return matcher instanceof CharClass && ((CharClass) matcher).rangeCount() == 1;
+    }
+
+    private int alternatives(Node node) {
+        return node.getTransitions().size() + (node.isEnd() ? 1 : 0);
+    }
+
+    private int blockSize(Node node) {
+        int alternatives = alternatives(node);
+        return alternatives == 0 ? 1 : 2 * alternatives - 1;
+    }
+}
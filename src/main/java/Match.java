@@ -0,0 +1,69 @@
+import java.util.Arrays;
+
+/**
+ * Offsets of a match and of its capture groups. Group 0 is the whole match; groups which did not participate in the
+ * match have the offsets -1.
+ */
+public class Match {
+    private final int[] slots;
+
+    public Match(int start, int end) {
+        this(new int[]{start, end});
+    }
+
+    public Match(int[] slots) {
+        this.slots = slots;
+    }
+
+    public int getStart() {
+        return slots[0];
+    }
+
+    /**
+     * @return the offset after the last matched character
+     */
+    public int getEnd() {
+        return slots[1];
+    }
+
+    public int getStart(int group) {
+        return slots[2 * group];
+    }
+
+    public int getEnd(int group) {
+        return slots[2 * group + 1];
+    }
+
+    public int groupCount() {
+        return slots.length / 2 - 1;
+    }
+
+    /**
+     * @return the part of {@code input} captured by the group, or null if the group did not participate in the match
+     */
+    public String group(CharSequence input, int group) {
+        if (getStart(group) < 0 || getEnd(group) < 0) {
+            return null;
+        }
+        return input.subSequence(getStart(group), getEnd(group)).toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Match && Arrays.equals(slots, ((Match) o).slots);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(slots);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder string = new StringBuilder();
+        for (int group = 0; group <= groupCount(); group++) {
+            string.append('[').append(getStart(group)).append(", ").append(getEnd(group)).append(')');
+        }
+        return string.toString();
+    }
+}
@@ -1,43 +1,572 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
 
+/**
+ * A compiled pattern. Matchers are safe to share between threads; the engines keep their mutable state per thread.
+ * <p>
+ * With {@link Options#setBytecodeThreshold(int)}, {@link #test(CharSequence)} counts its calls and, once the threshold
+ * is reached, compiles the minimized DFA to a hidden class with {@link BytecodeGenerator} and uses it from then on.
+ * Patterns whose DFA is too large keep the other engines.
+ * <p>
+ * Inputs of at least {@link Options#getParallelThreshold()} chars are tested in chunks on the common fork-join pool by
+ * {@link ParallelDfa}, with the minimized DFA built on first use. Single-core machines always scan sequentially.
+ * <p>
+ * Searches first skip to the next position at which the {@link Prefilter} allows a match to start, then find the span
+ * of a match with DFAs: the forward DFA finds where the first match ends, a DFA over the {@link Reversal reversed}
+ * program scanned backward finds the leftmost start, and the anchored DFA the end of the longest match from there.
+ * Only patterns with capture groups run the NFA, starting at the leftmost start. The forward and backward DFAs are built
+ * on the first search and share one {@link Options#getDfaCacheSize()} budget per thread, so a thread that searches
+ * caches at most twice that budget for the pattern, and one that only tests at most the budget.
+ * <p>
+ * Patterns without capture groups which accept only a few literals, like {@code cat|dog|bird}, are matched by
+ * {@link Literals} instead of the automata.
+ * <p>
+ * With {@link Options#setStatistics(boolean)}, every call is counted and timed in the {@link Statistics} of the
+ * pattern.
+ * <p>
+ * A matcher can be written to a versioned binary format with {@link #writeTo(OutputStream)} and read back without
+ * compiling, for example from a memory-mapped rule pack with {@link #load(FileChannel)}. Read matchers have no NFA.
+ */
 public class Matcher {
-    private Node nfa;
+    private static final int HAS_DENSE_DFA = 1;
+    private static final int HAS_UTF8 = 2;
+
+    /**
+     * Number of inputs tested per task by {@link #testAll(List, Executor)}.
+     */
+    public static final int BATCH_SLICE = 1024;
+
+    private final Node nfa;
+    private final Program program;
+    private final Prefilter prefilter;
+    private final Literals literals;
+    private final PikeVm vm;
+    private final LazyDfa dfa;
+    private volatile LazyDfa forward;
+    private volatile LazyDfa backward;
+    private final DenseDfa denseDfa;
+    private final Matcher utf8;
+    private final int bytecodeThreshold;
+    private final int parallelThreshold;
+    private final int maxDfaStates;
+    private final Statistics statistics;
+
+    private int calls;
+    private volatile boolean promoted;
+    private volatile Automaton generated;
+    private boolean built;
+    private DenseDfa builtDfa;
 
     public Matcher(Node nfa) {
+        this(nfa, new Lowering().lower(nfa));
+    }
+
+    private Matcher(Node nfa, Program program) {
+        this(nfa, program, Prefilter.of(program), new Options());
+    }
+
+    public Matcher(Node nfa, Program program, Prefilter prefilter, Options options) {
+        this(nfa, program, prefilter, options, options.isStatistics() ? new Statistics(null) : null);
+    }
+
+    /**
+     * @param statistics receives the counters of this matcher if {@link Options#isStatistics()} is set
+     */
+    public Matcher(Node nfa, Program program, Prefilter prefilter, Options options, Statistics statistics) {
+        this(nfa, program, prefilter, options, options.isStatistics() ? statistics : null,
+                options.isUtf8() ? compileUtf8(nfa, program, options, statistics) : null);
+    }
+
+    private Matcher(Node nfa, Program program, Prefilter prefilter, Options options, Statistics statistics,
+                    Matcher utf8) {
+        this(nfa, program, prefilter, options.getDfaCacheSize(),
+                options.isFullDfa() ? new DfaBuilder(program, options.getMaxDfaStates()).build() : null, utf8,
+                options.getBytecodeThreshold(), options.getParallelThreshold(), options.getMaxDfaStates(), statistics);
+    }
+
+    private Matcher(Node nfa, Program program, Prefilter prefilter, long dfaCacheSize, DenseDfa denseDfa,
+                    Matcher utf8, int bytecodeThreshold, int parallelThreshold, int maxDfaStates,
+                    Statistics statistics) {
         this.nfa = nfa;
+        this.program = program;
+        this.prefilter = prefilter;
+        this.literals = Literals.of(program);
+        this.vm = new PikeVm(program, statistics);
+        this.dfa = dfaCacheSize > 0 ? new LazyDfa(program, dfaCacheSize, false, statistics) : null;
+        this.denseDfa = denseDfa;
+        this.utf8 = utf8;
+        this.bytecodeThreshold = bytecodeThreshold;
+        this.parallelThreshold = parallelThreshold;
+        this.maxDfaStates = maxDfaStates;
+        this.statistics = statistics;
     }
 
-    public boolean test(String s) {
-        HashMap<Integer, Node> currentNodes = new HashMap<>();
-        List<Node> startNodes = new ArrayList<>();
-        currentNodes.put(nfa.getId(), nfa);
-        nfa.followEmptyTransitions(nfa, startNodes);
-        startNodes.forEach(n -> currentNodes.put(n.getId(), n));
+    private static Matcher compileUtf8(Node nfa, Program program, Options options, Statistics statistics) {
+        Program bytes = new Utf8Lowering().lower(program);
+        return new Matcher(nfa, bytes, Prefilter.of(bytes), options, statistics, null);
+    }
 
-        for (int i = 0; i < s.length(); i++) {
-            if (!proceed(currentNodes, s.charAt(i))) {
-                return false;
-            }
+    /**
+     * Writes the program, the prefilter, the dense DFA and the UTF-8 program, preceded by a header with the format
+     * version. Several matchers may be written to the same stream.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(BinaryFormat.MAGIC);
+        data.writeInt(BinaryFormat.VERSION);
+        writeBody(data);
+        data.flush();
+    }
+
+    /**
+     * Writes this matcher at the current position of the channel, which stays open.
+     */
+    public void writeTo(FileChannel channel) throws IOException {
+        writeTo(Channels.newOutputStream(channel));
+    }
+
+    private void writeBody(DataOutputStream data) throws IOException {
+        data.writeLong(getDfaCacheSize());
+        data.writeByte((denseDfa != null ? HAS_DENSE_DFA : 0) | (utf8 != null ? HAS_UTF8 : 0));
+        program.writeTo(data);
+        prefilter.writeTo(data);
+        if (denseDfa != null) {
+            denseDfa.writeTo(data);
         }
+        if (utf8 != null) {
+            utf8.writeBody(data);
+        }
+    }
 
-        return currentNodes.values().stream().anyMatch(Node::isEnd);
+    /**
+     * Reads a matcher written by {@link #writeTo(OutputStream)} and advances the buffer past it.
+     *
+     * @throws StreamCorruptedException if the data is not a matcher of a supported format version
+     */
+    public static Matcher readFrom(ByteBuffer in) throws IOException {
+        if (BinaryFormat.readInt(in) != BinaryFormat.MAGIC) {
+            throw new StreamCorruptedException("Not a compiled pattern");
+        }
+        int version = BinaryFormat.readInt(in);
+        if (version != BinaryFormat.VERSION) {
+            throw new StreamCorruptedException("Unsupported format version " + version);
+        }
+        return readBody(in);
     }
 
-    private boolean proceed(HashMap<Integer, Node> currentNodes, Character c) {
-        HashMap<Integer, Node> nextNodes = new HashMap<>();
+    private static Matcher readBody(ByteBuffer in) throws IOException {
+        long dfaCacheSize = in.remaining() >= Long.BYTES ? in.getLong() : -1;
+        int flags = in.hasRemaining() ? in.get() : -1;
+        if (dfaCacheSize < 0 || flags < 0) {
+            throw new StreamCorruptedException("Truncated or corrupted pattern data");
+        }
+
+        Program program = Program.readFrom(in);
+        Prefilter prefilter = Prefilter.readFrom(in);
+        DenseDfa denseDfa = (flags & HAS_DENSE_DFA) != 0 ? DenseDfa.readFrom(in) : null;
+        Matcher utf8 = (flags & HAS_UTF8) != 0 ? readBody(in) : null;
+        return new Matcher(null, program, prefilter, dfaCacheSize, denseDfa, utf8, 0, ParallelDfa.DEFAULT_THRESHOLD,
+                DenseDfa.DEFAULT_MAX_STATES, null);
+    }
 
-        for (Map.Entry<Integer, Node> node : currentNodes.entrySet()) {
-            node.getValue().getNextNodes(c).forEach(n -> nextNodes.put(n.getId(), n));
+    /**
+     * Maps the whole file and reads all matchers written to it.
+     */
+    public static List<Matcher> load(FileChannel channel) throws IOException {
+        ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        List<Matcher> matchers = new ArrayList<>();
+        while (in.hasRemaining()) {
+            matchers.add(readFrom(in));
         }
+        return matchers;
+    }
+
+    public Program getProgram() {
+        return program;
+    }
+
+    public Prefilter getPrefilter() {
+        return prefilter;
+    }
+
+    /**
+     * @return the minimized DFA, or null if it was not requested with {@link Options#setFullDfa(boolean)} or exceeded
+     * {@link Options#getMaxDfaStates()}
+     */
+    public DenseDfa getDenseDfa() {
+        return denseDfa;
+    }
 
-        if (nextNodes.isEmpty()) {
+    /**
+     * @return the bound in bytes of the lazy DFA cache of each thread, or 0 if the lazy DFA is disabled
+     */
+    public long getDfaCacheSize() {
+        return dfa == null ? 0 : dfa.getCacheSize();
+    }
+
+    /**
+     * @return the literals matching this pattern, or null if the pattern is not a set of literals
+     */
+    public Literals getLiterals() {
+        return literals;
+    }
+
+    /**
+     * @return the generated automaton, or null if the pattern has not been promoted or could not be generated
+     */
+    public Automaton getGenerated() {
+        return generated;
+    }
+
+    /**
+     * @return the counters of this pattern, or null if it was not compiled with
+     * {@link Options#setStatistics(boolean)}
+     */
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    public boolean test(CharSequence s) {
+        if (statistics == null) {
+            return doTest(s);
+        }
+        long start = System.nanoTime();
+        boolean result = doTest(s);
+        record(s.length(), start);
+        return result;
+    }
+
+    private boolean doTest(CharSequence s) {
+        if (literals != null) {
+            return literals.test(s);
+        }
+        if (!prefilter.mayMatchWhole(s)) {
             return false;
         }
-        currentNodes.clear();
-        currentNodes.putAll(nextNodes);
-        return true;
+        if (parallelThreshold > 0 && s.length() >= parallelThreshold
+                && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            DenseDfa dfa = fullDfa();
+            if (dfa != null) {
+                return new ParallelDfa(dfa).test(s);
+            }
+        }
+        Automaton generated = this.generated;
+        if (generated == null && bytecodeThreshold > 0 && !promoted && ++calls >= bytecodeThreshold) {
+            generated = promote();
+        }
+        if (generated != null) {
+            return generated.test(s);
+        }
+        if (denseDfa != null) {
+            return denseDfa.test(s);
+        }
+        if (dfa != null) {
+            int result = dfa.test(s);
+            if (result != LazyDfa.FAILED) {
+                return result == LazyDfa.MATCH;
+            }
+        }
+        return vm.test(s);
+    }
+
+    /**
+     * Matches the whole UTF-8 encoded input without decoding it. Requires {@link Options#setUtf8(boolean)}.
+     */
+    public boolean test(byte[] utf8) {
+        return utf8().test(ByteSequence.of(utf8));
+    }
+
+    /**
+     * Matches the UTF-8 encoded bytes between the position and the limit of the buffer without consuming them.
+     * Requires {@link Options#setUtf8(boolean)}.
+     */
+    public boolean test(ByteBuffer utf8) {
+        return utf8().test(ByteSequence.of(utf8));
+    }
+
+    /**
+     * Tests every input like {@link #test(CharSequence)}. The per-thread state of the lazy DFA is looked up once for
+     * the whole batch instead of once per input.
+     *
+     * @return whether the input at the same index matches
+     */
+    public boolean[] testAll(List<? extends CharSequence> inputs) {
+        boolean[] results = new boolean[inputs.size()];
+        testAll(inputs, results, 0);
+        return results;
+    }
+
+    /**
+     * Like {@link #testAll(List)}, but tests slices of {@link #BATCH_SLICE} inputs as tasks of the executor, for
+     * example a fork-join pool or a virtual thread per task executor. The inputs must not change during the call.
+     *
+     * @throws java.util.concurrent.CompletionException if testing failed
+     */
+    public boolean[] testAll(List<? extends CharSequence> inputs, Executor executor) {
+        boolean[] results = new boolean[inputs.size()];
+        List<CompletableFuture<Void>> slices = new ArrayList<>();
+        for (int from = 0; from < inputs.size(); from += BATCH_SLICE) {
+            List<? extends CharSequence> slice = inputs.subList(from, Math.min(inputs.size(), from + BATCH_SLICE));
+            int offset = from;
+            slices.add(CompletableFuture.runAsync(() -> testAll(slice, results, offset), executor));
+        }
+        CompletableFuture.allOf(slices.toArray(new CompletableFuture<?>[0])).join();
+        return results;
+    }
+
+    /**
+     * @return the indices of the matching inputs
+     * @see #testAll(List)
+     */
+    public BitSet matchingIndices(List<? extends CharSequence> inputs) {
+        return toBitSet(testAll(inputs));
+    }
+
+    /**
+     * @return the indices of the matching inputs
+     * @see #testAll(List, Executor)
+     */
+    public BitSet matchingIndices(List<? extends CharSequence> inputs, Executor executor) {
+        return toBitSet(testAll(inputs, executor));
+    }
+
+    /**
+     * @return a predicate testing whether the whole input matches, for filtering streams
+     */
+    public Predicate<CharSequence> asMatchPredicate() {
+        return this::test;
+    }
+
+    private void testAll(List<? extends CharSequence> inputs, boolean[] results, int offset) {
+        LazyDfa.Batch batch = dfa != null && literals == null && denseDfa == null && bytecodeThreshold == 0
+                && statistics == null ? dfa.batch() : null;
+        int i = offset;
+        for (CharSequence s : inputs) {
+            if (batch == null || parallelThreshold > 0 && s.length() >= parallelThreshold) {
+                results[i] = test(s);
+            } else if (prefilter.mayMatchWhole(s)) {
+                int result = batch.test(s);
+                results[i] = result == LazyDfa.FAILED ? vm.test(s) : result == LazyDfa.MATCH;
+            }
+            i++;
+        }
+    }
+
+    private static BitSet toBitSet(boolean[] results) {
+        BitSet bits = new BitSet(results.length);
+        for (int i = 0; i < results.length; i++) {
+            if (results[i]) {
+                bits.set(i);
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Matches the whole input and extracts the capture groups.
+     *
+     * @return the match, or null if {@code s} does not match
+     */
+    public Match match(CharSequence s) {
+        if (statistics == null) {
+            return doMatch(s);
+        }
+        long start = System.nanoTime();
+        Match match = doMatch(s);
+        record(s.length(), start);
+        return match;
+    }
+
+    private Match doMatch(CharSequence s) {
+        if (literals != null) {
+            return literals.test(s) ? new Match(0, s.length()) : null;
+        }
+        return vm.match(s);
+    }
+
+    /**
+     * @return the leftmost-longest match in {@code s}, or null if there is none
+     */
+    public Match find(CharSequence s) {
+        return find(s, 0);
+    }
+
+    /**
+     * @return the leftmost-longest match in {@code s} which starts at or after {@code from}, or null if there is none
+     */
+    public Match find(CharSequence s, int from) {
+        if (statistics == null) {
+            return doFind(s, from);
+        }
+        long start = System.nanoTime();
+        Match match = doFind(s, from);
+        record(Math.max(s.length() - from, 0), start);
+        return match;
+    }
+
+    private Match doFind(CharSequence s, int from) {
+        if (from > s.length()) {
+            return null;
+        }
+        if (literals != null) {
+            return literals.find(s, from);
+        }
+        int start = prefilter.next(s, from);
+        if (start < 0 || !prefilter.mayMatch(s, start)) {
+            return null;
+        }
+        if (dfa != null) {
+            return findWithDfa(s, start);
+        }
+        return vm.find(s, start, prefilter);
+    }
+
+    /**
+     * Builds the forward and backward DFAs with half of the cache budget each. The forward DFA is published first, so
+     * a thread seeing the backward DFA also sees it.
+     */
+    private synchronized LazyDfa findDfas() {
+        if (backward == null) {
+            forward = new LazyDfa(program, dfa.getCacheSize() / 2, true, statistics);
+            backward = new LazyDfa(new Reversal().reverse(program), dfa.getCacheSize() / 2, false, statistics);
+        }
+        return backward;
+    }
+
+    /**
+     * The backward scan from the first match end finds the leftmost start of the matches ending there, and stops as
+     * soon as no longer match is possible. A match starting further left has to end later, so the forward DFA is run
+     * to just before that start and continued without restarting, which leaves only the threads of earlier starts. If
+     * one of them matches, the backward scan is repeated from its end.
+     */
+    private Match findWithDfa(CharSequence s, int from) {
+        LazyDfa backward = this.backward != null ? this.backward : findDfas();
+        LazyDfa forward = this.forward;
+        int end = forward.scan(s, from, true);
+        if (end == -1) {
+            return null;
+        }
+
+        int start = -1;
+        while (end >= 0) {
+            int offset = backward.scan(new ReversedSequence(s, from, end), 0, false);
+            if (offset < 0) {
+                return vm.find(s, from, prefilter);
+            }
+            start = end - offset;
+            if (start == from) {
+                break;
+            }
+            int[] earlier = forward.statesAt(s, from, start - 1);
+            end = earlier == null ? LazyDfa.FAILED_SCAN : dfa.scan(s, start - 1, earlier, true);
+        }
+        if (end == LazyDfa.FAILED_SCAN) {
+            return vm.find(s, from, prefilter);
+        }
+
+        if (program.getSlotCount() > 2) {
+            return vm.find(s, start, prefilter);
+        }
+        end = dfa.scan(s, start, false);
+        return end >= 0 ? new Match(start, end) : vm.find(s, from, prefilter);
+    }
+
+    /**
+     * Searches UTF-8 encoded input without decoding it. Requires {@link Options#setUtf8(boolean)}.
+     *
+     * @return the leftmost-longest match with byte offsets, or null if there is none
+     */
+    public Match find(byte[] utf8, int from) {
+        return utf8().find(ByteSequence.of(utf8), from);
+    }
+
+    public Match find(byte[] utf8) {
+        return find(utf8, 0);
+    }
+
+    /**
+     * @return the leftmost-longest match with byte offsets relative to the position of the buffer, or null if there is
+     * none
+     */
+    public Match find(ByteBuffer utf8) {
+        return utf8().find(ByteSequence.of(utf8), 0);
+    }
+
+    /**
+     * @return the successive non-overlapping matches in {@code s}
+     */
+    public Iterator<Match> findAll(CharSequence s) {
+        return new Iterator<Match>() {
+            private Match next = find(s, 0);
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Match next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Match match = next;
+                int from = match.getEnd() == match.getStart() ? match.getEnd() + 1 : match.getEnd();
+                next = find(s, from);
+                return match;
+            }
+        };
+    }
+
+    /**
+     * The call counter is not synchronized, so racing threads may promote a little late, but only once.
+     */
+    private synchronized Automaton promote() {
+        if (!promoted) {
+            DenseDfa source = fullDfa();
+            generated = source == null ? null : new BytecodeGenerator().generate(source);
+            promoted = true;
+        }
+        return generated;
+    }
+
+    /**
+     * @return the minimized DFA, built on the first call if it was not requested, or null if it has more than
+     * {@link Options#getMaxDfaStates()} states
+     */
+    private synchronized DenseDfa fullDfa() {
+        if (denseDfa != null) {
+            return denseDfa;
+        }
+        if (!built) {
+            builtDfa = new DfaBuilder(program, maxDfaStates).build();
+            built = true;
+        }
+        return builtDfa;
+    }
+
+    private void record(int chars, long start) {
+        statistics.recordCall(chars, System.nanoTime() - start);
+    }
+
+    private Matcher utf8() {
+        if (utf8 == null) {
+            throw new IllegalStateException("Pattern was not compiled with Options.setUtf8(true)");
+        }
+        return utf8;
     }
 }
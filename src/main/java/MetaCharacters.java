@@ -1,26 +1,25 @@
-
-import java.util.Arrays;
-import java.util.function.Predicate;
-
 public class MetaCharacters {
 
-    private static Predicate<Character>[] metaCharacters = new Predicate[256];
+    private static final CharClass[] metaCharacters = new CharClass[256];
 
     static {
-        Arrays.stream(metaCharacters).forEach(entry -> entry = null);
-        metaCharacters['d'] = (c) -> Character.isDigit(c);
-        metaCharacters['D'] = (c) -> !Character.isDigit(c);
-        metaCharacters['s'] = (c) -> Character.isWhitespace(c);
-        metaCharacters['S'] = (c) -> !Character.isWhitespace(c);
-        metaCharacters['w'] = (c) -> Character.isLetterOrDigit(c) || c.equals('_');
-        metaCharacters['W'] = (c) -> !(Character.isLetterOrDigit(c) || c.equals('_'));
+        CharClass digit = CharClass.matching(Character::isDigit);
+        CharClass whitespace = CharClass.matching(Character::isWhitespace);
+        CharClass word = CharClass.matching(Character::isLetterOrDigit).union(CharClass.of('_'));
+
+        metaCharacters['d'] = digit;
+        metaCharacters['D'] = digit.negate();
+        metaCharacters['s'] = whitespace;
+        metaCharacters['S'] = whitespace.negate();
+        metaCharacters['w'] = word;
+        metaCharacters['W'] = word.negate();
     }
 
     public static boolean exists(Character character) {
-        return metaCharacters[character] != null;
+        return character < metaCharacters.length && metaCharacters[character] != null;
     }
 
-    public static Predicate<Character> getHandler(Character character) {
+    public static CharClass getHandler(Character character) {
         return metaCharacters[character];
     }
 }
@@ -0,0 +1,425 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Shrinks the NFA built by the {@link Compiler} before it is lowered:
+ * <ol>
+ * <li>Empty transitions are eliminated. Every remaining node gets the consuming transitions of its empty closure, in
+ * the order in which the closure reaches them, and accepts if the closure reaches an accepting node. Transitions
+ * which save a capture slot stay, together with the nodes whose closure contains them.</li>
+ * <li>Nodes with the same future are merged: nodes which accept the same pattern and have the same transitions in the
+ * same order, up to merged destinations, are found by partition refinement.</li>
+ * <li>Nodes with the same past are merged: nodes entered by exactly the same transitions get the union of their
+ * transitions. This changes the order of the transitions, so it is only done without capture groups, where the order
+ * doesn't decide anything under leftmost-longest semantics.</li>
+ * </ol>
+ * The merges are repeated until neither finds anything. Eliminating the empty transitions copies every transition into
+ * the closures it is part of, which for {@code x?x?x?} or {@code x?{n}} adds quadratically many, so the elimination is
+ * skipped if it would lower to more instructions than the original NFA.
+ */
+public class NfaReduction {
+    private int statesBefore;
+    private int transitionsBefore;
+    private int statesAfter;
+    private int transitionsAfter;
+
+    /**
+     * @return the start of the reduced NFA, which shares no nodes with the given one unless nothing could be reduced
+     */
+    public Node reduce(Node start) {
+        List<Node> nodes = Node.collect(start);
+        statesBefore = nodes.size();
+        transitionsBefore = countTransitions(nodes);
+
+        Node reduced = eliminateEpsilons(start, nodes.stream().mapToInt(NfaReduction::blockSize).sum());
+        if (reduced == null) {
+            reduced = start;
+        }
+
+        boolean saves = hasSaves(reduced);
+        int states = Node.collect(reduced).size();
+        while (true) {
+            reduced = mergeForward(reduced, saves);
+            if (!saves) {
+                reduced = mergeBackward(reduced);
+            }
+            int merged = Node.collect(reduced).size();
+            if (merged == states) {
+                break;
+            }
+            states = merged;
+        }
+
+        nodes = Node.collect(reduced);
+        statesAfter = nodes.size();
+        transitionsAfter = countTransitions(nodes);
+        return reduced;
+    }
+
+    public int getStatesBefore() {
+        return statesBefore;
+    }
+
+    public int getTransitionsBefore() {
+        return transitionsBefore;
+    }
+
+    public int getStatesAfter() {
+        return statesAfter;
+    }
+
+    public int getTransitionsAfter() {
+        return transitionsAfter;
+    }
+
+    /**
+     * Replaces the transitions of every node by the transitions kept in its empty closure. A node whose closure saves
+     * a capture slot keeps its own transitions instead: a closure which saves slots on the way may have to end where
+     * it reaches a node it already passed, such as the start of a loop which matched nothing, and this is only
+     * decided while the closure is followed.
+     *
+     * @return the copy of the NFA without empty transitions, or null if it lowers to more than {@code maxSize}
+     * instructions
+     */
+    private Node eliminateEpsilons(Node start, int maxSize) {
+        Map<Node, Node> copies = new HashMap<>();
+        Map<Integer, Node> accepting = new HashMap<>();
+        Deque<Node> queue = new ArrayDeque<>();
+        copies.put(start, new Node());
+        queue.add(start);
+        int size = 0;
+
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            Node copy = copies.get(node);
+            List<Transition> kept = new ArrayList<>();
+            List<Integer> accepts = new ArrayList<>();
+            closure(node, new HashSet<>(), kept, accepts);
+
+            if (kept.stream().anyMatch(transition -> transition.getSlot() >= 0)) {
+                kept = node.getTransitions();
+                accepts = node.isEnd() ? List.of(node.getPattern()) : List.of();
+            }
+            if (accepts.size() == 1) {
+                copy.markAsEnd(accepts.get(0));
+            } else {
+                for (int pattern : accepts) {
+                    add(copy, new Transition(Transition.EMPTY_TRANSITION,
+                            accepting.computeIfAbsent(pattern, NfaReduction::accepting)));
+                }
+            }
+
+            for (Transition transition : kept) {
+                Node destination = copies.get(transition.getDestination());
+                if (destination == null) {
+                    destination = new Node();
+                    copies.put(transition.getDestination(), destination);
+                    queue.add(transition.getDestination());
+                }
+                add(copy, transition.copy(destination));
+            }
+
+            size += blockSize(copy);
+            if (size > maxSize) {
+                return null;
+            }
+        }
+
+        return copies.get(start);
+    }
+
+    private static Node accepting(int pattern) {
+        Node node = new Node();
+        node.markAsEnd(pattern);
+        return node;
+    }
+
+    /**
+     * Collects the consuming and saving transitions in the empty closure of the node in priority order, and the
+     * patterns of the accepting nodes in it.
+     */
+    private void closure(Node node, Set<Node> visited, List<Transition> kept, List<Integer> accepts) {
+        if (!visited.add(node)) {
+            return;
+        }
+        if (node.isEnd() && !accepts.contains(node.getPattern())) {
+            accepts.add(node.getPattern());
+        }
+        for (Transition transition : node.getTransitions()) {
+            if (transition.isEmpty() && transition.getSlot() < 0) {
+                closure(transition.getDestination(), visited, kept, accepts);
+            } else {
+                kept.add(transition);
+            }
+        }
+    }
+
+    /**
+     * Merges nodes which accept the same pattern and whose transitions have the same matchers and slots and lead to
+     * merged nodes, in the same order.
+     * <p>
+     * The strongly connected components are visited after the components they lead to, so a node outside of cycles is
+     * merged by looking up its transitions, with their destinations already merged, and a node with a loop only to
+     * itself likewise. Only the nodes of larger cycles are refined together, and only within their cycle.
+     *
+     * @param saves whether the NFA saves capture slots, in which case nodes with empty transitions are not merged: the
+     * closures passing them would stop at the merged node where they used to go on
+     */
+    private Node mergeForward(Node start, boolean saves) {
+        List<Node> nodes = Node.number(start);
+        int[] blocks = new int[nodes.size()];
+        Arrays.fill(blocks, -1);
+        Map<List<Object>, Integer> signatures = new HashMap<>();
+        int blockCount = 0;
+
+        for (List<Node> component : components(nodes)) {
+            if (component.size() == 1) {
+                Node node = component.get(0);
+                List<Object> signature = signature(node, saves);
+                for (Transition transition : node.getTransitions()) {
+                    signature.add(transition.getMatcher());
+                    signature.add(transition.getSlot());
+                    signature.add(transition.getDestination() == node ? -2 : blocks[transition.getDestination().getId()]);
+                }
+                Integer block = signatures.get(signature);
+                if (block == null) {
+                    block = blockCount++;
+                    signatures.put(signature, block);
+                }
+                blocks[node.getId()] = block;
+                continue;
+            }
+
+            // blocks within the cycle are numbered from -3 down while they are refined
+            Map<List<Object>, Integer> initial = new HashMap<>();
+            for (Node node : component) {
+                blocks[node.getId()] = -3 - initial.computeIfAbsent(signature(node, saves), k -> initial.size());
+            }
+            int count = initial.size();
+            while (true) {
+                Map<List<Object>, Integer> refinement = new HashMap<>();
+                int[] refined = new int[component.size()];
+                for (int i = 0; i < component.size(); i++) {
+                    Node node = component.get(i);
+                    List<Object> signature = new ArrayList<>();
+                    signature.add(blocks[node.getId()]);
+                    for (Transition transition : node.getTransitions()) {
+                        signature.add(transition.getMatcher());
+                        signature.add(transition.getSlot());
+                        signature.add(blocks[transition.getDestination().getId()]);
+                    }
+                    refined[i] = refinement.computeIfAbsent(signature, k -> refinement.size());
+                }
+                for (int i = 0; i < component.size(); i++) {
+                    blocks[component.get(i).getId()] = -3 - refined[i];
+                }
+                if (refinement.size() == count) {
+                    break;
+                }
+                count = refinement.size();
+            }
+            for (Node node : component) {
+                blocks[node.getId()] = blockCount - 3 - blocks[node.getId()];
+            }
+            blockCount += count;
+        }
+
+        if (blockCount == nodes.size()) {
+            return start;
+        }
+        Node[] merged = new Node[blockCount];
+        for (Node node : nodes) {
+            int block = blocks[node.getId()];
+            if (merged[block] != null) {
+                continue;
+            }
+            merged[block] = new Node();
+            if (node.isEnd()) {
+                merged[block].markAsEnd(node.getPattern());
+            }
+        }
+        boolean[] done = new boolean[blockCount];
+        for (Node node : nodes) {
+            int block = blocks[node.getId()];
+            if (!done[block]) {
+                done[block] = true;
+                for (Transition transition : node.getTransitions()) {
+                    add(merged[block], transition.copy(merged[blocks[transition.getDestination().getId()]]));
+                }
+            }
+        }
+        return merged[blocks[start.getId()]];
+    }
+
+    /**
+     * @return the start of the signature of the node, which nodes must share to be merged
+     */
+    private static List<Object> signature(Node node, boolean saves) {
+        List<Object> signature = new ArrayList<>();
+        signature.add(node.getPattern());
+        boolean unique = saves && node.getTransitions().stream().anyMatch(Transition::isEmpty);
+        signature.add(unique ? node : null);
+        return signature;
+    }
+
+    /**
+     * Finds the strongly connected components with Tarjan's algorithm, without recursion so that long chains of nodes
+     * don't overflow the stack.
+     *
+     * @return the components, each after all components it has transitions to
+     */
+    private static List<List<Node>> components(List<Node> nodes) {
+        int[] index = new int[nodes.size()];
+        int[] lowLink = new int[nodes.size()];
+        boolean[] onStack = new boolean[nodes.size()];
+        Arrays.fill(index, -1);
+        Deque<Node> stack = new ArrayDeque<>();
+        Deque<int[]> calls = new ArrayDeque<>();
+        List<List<Node>> components = new ArrayList<>();
+        int nextIndex = 0;
+
+        for (Node root : nodes) {
+            if (index[root.getId()] >= 0) {
+                continue;
+            }
+            calls.push(new int[]{root.getId(), 0});
+            index[root.getId()] = lowLink[root.getId()] = nextIndex++;
+            stack.push(root);
+            onStack[root.getId()] = true;
+
+            while (!calls.isEmpty()) {
+                int[] call = calls.peek();
+                Node node = nodes.get(call[0]);
+                if (call[1] < node.getTransitions().size()) {
+                    Node destination = node.getTransitions().get(call[1]++).getDestination();
+                    int id = destination.getId();
+                    if (index[id] < 0) {
+                        index[id] = lowLink[id] = nextIndex++;
+                        stack.push(destination);
+                        onStack[id] = true;
+                        calls.push(new int[]{id, 0});
+                    } else if (onStack[id]) {
+                        lowLink[node.getId()] = Math.min(lowLink[node.getId()], index[id]);
+                    }
+                    continue;
+                }
+
+                calls.pop();
+                if (!calls.isEmpty()) {
+                    int parent = calls.peek()[0];
+                    lowLink[parent] = Math.min(lowLink[parent], lowLink[node.getId()]);
+                }
+                if (lowLink[node.getId()] == index[node.getId()]) {
+                    List<Node> component = new ArrayList<>();
+                    Node member;
+                    do {
+                        member = stack.pop();
+                        onStack[member.getId()] = false;
+                        component.add(member);
+                    } while (member != node);
+                    components.add(component);
+                }
+            }
+        }
+        return components;
+    }
+
+    /**
+     * Merges nodes, other than the start, which are entered by transitions with the same matchers from the same
+     * nodes. Nodes accepting different patterns are not merged.
+     */
+    private Node mergeBackward(Node start) {
+        List<Node> nodes = Node.number(start);
+        List<Set<List<Object>>> incoming = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            incoming.add(new HashSet<>());
+        }
+        incoming.get(start.getId()).add(List.of());
+        for (Node node : nodes) {
+            for (Transition transition : node.getTransitions()) {
+                incoming.get(transition.getDestination().getId()).add(List.of(node.getId(), transition.getMatcher()));
+            }
+        }
+
+        Map<Set<List<Object>>, Integer> sets = new HashMap<>();
+        Map<Integer, Integer> patterns = new HashMap<>();
+        int[] blocks = new int[nodes.size()];
+        int blockCount = 0;
+        for (Node node : nodes) {
+            Integer block = sets.get(incoming.get(node.getId()));
+            if (block != null && node.isEnd() && patterns.getOrDefault(block, node.getPattern()) != node.getPattern()) {
+                block = null;
+            }
+            if (block == null) {
+                block = blockCount++;
+                sets.put(incoming.get(node.getId()), block);
+            }
+            if (node.isEnd()) {
+                patterns.put(block, node.getPattern());
+            }
+            blocks[node.getId()] = block;
+        }
+
+        if (blockCount == nodes.size()) {
+            return start;
+        }
+        List<Node> merged = new ArrayList<>();
+        for (int block = 0; block < blockCount; block++) {
+            Node node = new Node();
+            if (patterns.containsKey(block)) {
+                node.markAsEnd(patterns.get(block));
+            }
+            merged.add(node);
+        }
+        for (Node node : nodes) {
+            for (Transition transition : node.getTransitions()) {
+                add(merged.get(blocks[node.getId()]),
+                        transition.copy(merged.get(blocks[transition.getDestination().getId()])));
+            }
+        }
+        return merged.get(blocks[start.getId()]);
+    }
+
+    /**
+     * Adds the transition unless the node already has one with the same matcher, slot and destination.
+     */
+    private static void add(Node node, Transition transition) {
+        for (Transition existing : node.getTransitions()) {
+            if (existing.getDestination() == transition.getDestination() && existing.getSlot() == transition.getSlot()
+                    && existing.getMatcher().equals(transition.getMatcher())) {
+                return;
+            }
+        }
+        node.addTransition(transition);
+    }
+
+    private static boolean hasSaves(Node start) {
+        return Node.collect(start).stream()
+                .anyMatch(node -> node.getTransitions().stream().anyMatch(transition -> transition.getSlot() >= 0));
+    }
+
+    /**
+     * @return the number of instructions the node is lowered to, see {@link Lowering}
+     */
+    private static int blockSize(Node node) {
+        int alternatives = node.getTransitions().size() + (node.isEnd() ? 1 : 0);
+        return alternatives == 0 ? 1 : 2 * alternatives - 1;
+    }
+
+    private static int countTransitions(List<Node> nodes) {
+        return nodes.stream().mapToInt(node -> node.getTransitions().size()).sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("states %s -> %s, transitions %s -> %s", statesBefore, statesAfter, transitionsBefore,
+                transitionsAfter);
+    }
+}
@@ -1,30 +1,80 @@
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class Node {
 
-    private static Integer ID = 0;
-
-    private boolean end = false;
-    private Integer id;
+    private int pattern = -1;
+    private int id = -1;
     private List<Transition> transitions = new ArrayList<>(3);
 
-    public Node() {
-        this.id = ID++;
+    /**
+     * @return all nodes reachable from {@code start} in breadth-first order, starting with {@code start} itself
+     */
+    public static List<Node> collect(Node start) {
+        Set<Node> visited = new HashSet<>();
+        List<Node> nodes = new ArrayList<>();
+        Deque<Node> queue = new ArrayDeque<>();
+        queue.add(start);
+        visited.add(start);
+
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            nodes.add(node);
+            for (Transition transition : node.getTransitions()) {
+                if (visited.add(transition.getDestination())) {
+                    queue.add(transition.getDestination());
+                }
+            }
+        }
+
+        return nodes;
+    }
+
+    /**
+     * Assigns dense ids in breadth-first order to all nodes reachable from {@code start}.
+     *
+     * @return the nodes indexed by their id
+     */
+    public static List<Node> number(Node start) {
+        List<Node> nodes = collect(start);
+        for (int i = 0; i < nodes.size(); i++) {
+            nodes.get(i).setId(i);
+        }
+        return nodes;
     }
 
     public boolean isEnd() {
-        return end;
+        return pattern >= 0;
     }
 
     public void markAsEnd() {
-        this.end = true;
+        markAsEnd(0);
+    }
+
+    /**
+     * Marks this node as the accepting node of the given pattern, for automata combining several patterns.
+     */
+    public void markAsEnd(int pattern) {
+        this.pattern = pattern;
+    }
+
+    /**
+     * @return the pattern accepted by this node, or -1 if it is not accepting
+     */
+    public int getPattern() {
+        return pattern;
     }
 
-    public Integer getId() {
+    /**
+     * @return the dense index of this node within its NFA, assigned once the NFA is complete
+     */
+    public int getId() {
         return id;
     }
 
+    public void setId(int id) {
+        this.id = id;
+    }
+
     public List<Transition> getTransitions() {
         return transitions;
     }
@@ -37,27 +87,4 @@ public class Node {
         transition.setStart(this);
         transitions.add(transition);
     }
-
-    public List<Node> getNextNodes(Character character) {
-        List<Node> matching = transitions
-                .stream()
-                .filter(transition -> transition.matches(character))
-                .map(Transition::getDestination)
-                .collect(Collectors.toList());
-        List<Node> expand = new ArrayList<>();
-        matching.forEach(n -> followEmptyTransitions(n, expand));
-        matching.addAll(expand);
-
-        return matching;
-    }
-
-    public void followEmptyTransitions(Node node, List<Node> collector) {
-        node.getTransitions().stream()
-                .filter(transition -> transition.matches(null))
-                .map(Transition::getDestination)
-                .forEach(n -> {
-                    collector.add(n);
-                    followEmptyTransitions(n, collector);
-                });
-    }
 }
@@ -0,0 +1,163 @@
+import java.util.Objects;
+
+public class Options {
+    private long dfaCacheSize = LazyDfa.DEFAULT_CACHE_SIZE;
+    private int bufferSize = Grep.DEFAULT_BUFFER_SIZE;
+    private boolean utf8 = false;
+    private boolean fullDfa = false;
+    private int maxDfaStates = DenseDfa.DEFAULT_MAX_STATES;
+    private int bytecodeThreshold = 0;
+    private boolean statistics = false;
+    private int parallelThreshold = ParallelDfa.DEFAULT_THRESHOLD;
+    private boolean nfaReduction = true;
+    private int maxNfaSize = Compiler.DEFAULT_MAX_NFA_SIZE;
+
+    public long getDfaCacheSize() {
+        return dfaCacheSize;
+    }
+
+    /**
+     * Upper bound in bytes for the states cached by the lazy DFA. A size of 0 disables the DFA and
+     * always simulates the NFA.
+     */
+    public void setDfaCacheSize(long dfaCacheSize) {
+        this.dfaCacheSize = dfaCacheSize;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Size in chars of the buffers used to stream input through a {@link Grep}.
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public boolean isUtf8() {
+        return utf8;
+    }
+
+    /**
+     * Whether to also compile a program over UTF-8 bytes, which is required by the {@code byte[]} and
+     * {@link java.nio.ByteBuffer} overloads of {@link Matcher}.
+     */
+    public void setUtf8(boolean utf8) {
+        this.utf8 = utf8;
+    }
+
+    public boolean isFullDfa() {
+        return fullDfa;
+    }
+
+    /**
+     * Whether to construct and minimize the complete DFA while compiling, so that {@link Matcher#test} costs a single
+     * table lookup per character. Patterns whose DFA exceeds {@link #getMaxDfaStates()} fall back to the lazy DFA.
+     */
+    public void setFullDfa(boolean fullDfa) {
+        this.fullDfa = fullDfa;
+    }
+
+    public int getMaxDfaStates() {
+        return maxDfaStates;
+    }
+
+    public void setMaxDfaStates(int maxDfaStates) {
+        this.maxDfaStates = maxDfaStates;
+    }
+
+    public int getBytecodeThreshold() {
+        return bytecodeThreshold;
+    }
+
+    /**
+     * Number of calls to {@link Matcher#test(CharSequence)} after which the pattern is compiled to JVM bytecode by
+     * {@link BytecodeGenerator}. A threshold of 0 disables the generated code.
+     */
+    public void setBytecodeThreshold(int bytecodeThreshold) {
+        this.bytecodeThreshold = bytecodeThreshold;
+    }
+
+    public boolean isStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Whether compiled patterns collect {@link Statistics}, available from {@link Matcher#getStatistics()}.
+     */
+    public void setStatistics(boolean statistics) {
+        this.statistics = statistics;
+    }
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * Input length in chars from which {@link Matcher#test(CharSequence)} splits the input into chunks and scans them
+     * in parallel with {@link ParallelDfa}. A threshold of 0 always scans sequentially.
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    public boolean isNfaReduction() {
+        return nfaReduction;
+    }
+
+    /**
+     * Whether to eliminate the empty transitions of the NFA and merge its equivalent nodes with {@link NfaReduction}
+     * before lowering it.
+     */
+    public void setNfaReduction(boolean nfaReduction) {
+        this.nfaReduction = nfaReduction;
+    }
+
+    public int getMaxNfaSize() {
+        return maxNfaSize;
+    }
+
+    /**
+     * Upper bound on the nodes of the NFA of one regex, above which it fails to compile with a
+     * {@link CompileException}. Counted repetitions are expanded into one copy of their operand per count, since a
+     * finite automaton needs a state per count, so nested ones such as "(a{1000}){1000}" multiply.
+     */
+    public void setMaxNfaSize(int maxNfaSize) {
+        this.maxNfaSize = maxNfaSize;
+    }
+
+    public Options copy() {
+        Options copy = new Options();
+        copy.dfaCacheSize = dfaCacheSize;
+        copy.bufferSize = bufferSize;
+        copy.utf8 = utf8;
+        copy.fullDfa = fullDfa;
+        copy.maxDfaStates = maxDfaStates;
+        copy.bytecodeThreshold = bytecodeThreshold;
+        copy.statistics = statistics;
+        copy.parallelThreshold = parallelThreshold;
+        copy.nfaReduction = nfaReduction;
+        copy.maxNfaSize = maxNfaSize;
+        return copy;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Options)) {
+            return false;
+        }
+        Options other = (Options) o;
+        return dfaCacheSize == other.dfaCacheSize && bufferSize == other.bufferSize && utf8 == other.utf8
+                && fullDfa == other.fullDfa && maxDfaStates == other.maxDfaStates
+                && bytecodeThreshold == other.bytecodeThreshold && statistics == other.statistics
+                && parallelThreshold == other.parallelThreshold && nfaReduction == other.nfaReduction
+                && maxNfaSize == other.maxNfaSize;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(dfaCacheSize, bufferSize, utf8, fullDfa, maxDfaStates, bytecodeThreshold,
+                statistics, parallelThreshold, nfaReduction, maxNfaSize);
+    }
+}
@@ -0,0 +1,65 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Tests very large inputs on several cores with a {@link DenseDfa}. The input is split into chunks, and a fork-join
+ * task computes for every chunk the state reached from every state with {@link DenseDfa#transitions}. Composing the
+ * mappings in order gives the state after the whole input, so the answer is the same as scanning it sequentially.
+ * <p>
+ * The chunks are read from several threads at once, so the input must not be modified during the call.
+ */
+public class ParallelDfa {
+    public static final int DEFAULT_THRESHOLD = 1 << 24;
+    public static final int MIN_CHUNK_SIZE = 1 << 12;
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final DenseDfa dfa;
+    private final ForkJoinPool pool;
+
+    public ParallelDfa(DenseDfa dfa) {
+        this(dfa, ForkJoinPool.commonPool());
+    }
+
+    public ParallelDfa(DenseDfa dfa, ForkJoinPool pool) {
+        this.dfa = dfa;
+        this.pool = pool;
+    }
+
+    public boolean test(CharSequence s) {
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, s.length() / (pool.getParallelism() * CHUNKS_PER_THREAD));
+        int[] transitions = pool.invoke(new Chunk(s, 0, s.length(), chunkSize));
+        return dfa.isAccepting(transitions[dfa.getStart()]);
+    }
+
+    private class Chunk extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final CharSequence s;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+
+        Chunk(CharSequence s, int from, int to, int chunkSize) {
+            this.s = s;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (to - from <= chunkSize) {
+                return dfa.transitions(s, from, to);
+            }
+            int middle = from + (to - from) / 2;
+            Chunk left = new Chunk(s, from, middle, chunkSize);
+            left.fork();
+            int[] right = new Chunk(s, middle, to, chunkSize).compute();
+            int[] transitions = left.join();
+            for (int state = 0; state < transitions.length; state++) {
+                transitions[state] = right[transitions[state]];
+            }
+            return transitions;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses a regular expression into an {@link Ast} by recursive descent. Alternation binds weakest, then
+ * concatenation, then the quantifiers {@code * + ? {n,m}}, which may be stacked.
+ * <p>
+ * Parentheses capture and are numbered by their opening parenthesis; {@code (?:...)} groups without capturing.
+ */
+public class Parser {
+    private String regex;
+    private int position;
+    private int groupCount;
+
+    public Ast parse(String regex) {
+        this.regex = regex;
+        this.position = 0;
+        this.groupCount = 0;
+
+        Ast ast = parseAlternation();
+        if (position < regex.length()) {
+            throw new CompileException(String.format("Unmatched ')' at position %s", position));
+        }
+        return ast;
+    }
+
+    /**
+     * @return the number of capture groups in the last parsed regex
+     */
+    public int getGroupCount() {
+        return groupCount;
+    }
+
+    private Ast parseAlternation() {
+        List<Ast> branches = new ArrayList<>();
+        branches.add(parseConcat());
+        while (peek('|')) {
+            position++;
+            branches.add(parseConcat());
+        }
+        return branches.size() == 1 ? branches.get(0) : new Ast.Alternation(branches);
+    }
+
+    private Ast parseConcat() {
+        List<Ast> items = new ArrayList<>();
+        while (position < regex.length() && !peek('|') && !peek(')')) {
+            items.add(parseRepeat());
+        }
+        if (items.isEmpty()) {
+            return Ast.Empty.INSTANCE;
+        }
+        return items.size() == 1 ? items.get(0) : new Ast.Concat(items);
+    }
+
+    private Ast parseRepeat() {
+        if (isQuantifier()) {
+            throw new CompileException(String.format("Nothing to repeat at position %s", position));
+        }
+        Ast atom = parseAtom();
+        while (isQuantifier()) {
+            atom = parseQuantifier(atom);
+        }
+        return atom;
+    }
+
+    private boolean isQuantifier() {
+        return peek('*') || peek('+') || peek('?') || peek('{');
+    }
+
+    private Ast parseQuantifier(Ast atom) {
+        char quantifier = regex.charAt(position++);
+        if (quantifier == '*') {
+            return new Ast.Repeat(atom, 0, -1);
+        } else if (quantifier == '+') {
+            return new Ast.Repeat(atom, 1, -1);
+        } else if (quantifier == '?') {
+            return new Ast.Repeat(atom, 0, 1);
+        }
+
+        int start = position - 1;
+        skipWhitespace();
+        int min = readInt();
+        int max = min;
+        skipWhitespace();
+        if (peek(',')) {
+            position++;
+            skipWhitespace();
+            max = peek('}') ? -1 : readInt();
+            skipWhitespace();
+        }
+        eat('}');
+
+        if (Math.max(min, max) > Compiler.MAX_REPETITION) {
+            throw new CompileException(String.format("Repetition at position %s exceeds %s", start,
+                    Compiler.MAX_REPETITION));
+        }
+        if (max >= 0 && max < min) {
+            throw new CompileException(String.format("Invalid repetition {%s,%s} at position %s", min, max, start));
+        }
+        return new Ast.Repeat(atom, min, max);
+    }
+
+    private Ast parseAtom() {
+        char c = regex.charAt(position);
+        if (c == '(') {
+            position++;
+            int group = 0;
+            if (regex.startsWith("?:", position)) {
+                position += 2;
+            } else {
+                group = ++groupCount;
+            }
+            Ast child = parseAlternation();
+            eat(')');
+            return group == 0 ? child : new Ast.Group(child, group);
+        }
+        if (c == '[') {
+            return new Ast.Chars(parseCharacterClass());
+        }
+
+        if (c == '\\') {
+            char escaped = escaped();
+            position++;
+            return new Ast.Chars(MetaCharacters.exists(escaped) ? MetaCharacters.getHandler(escaped)
+                    : CharClass.of(escaped));
+        }
+        position++;
+        if (c == '.') {
+            return new Ast.Chars(CharClass.of('\n').negate());
+        }
+        return new Ast.Chars(CharClass.of(c));
+    }
+
+    private CharClass parseCharacterClass() {
+        eat('[');
+        boolean negate = peek('^');
+        if (negate) {
+            position++;
+        }
+
+        CharClass chars = CharClass.NONE;
+        while (position < regex.length() && !peek(']')) {
+            char c = regex.charAt(position);
+            if (c == '\\' && position + 1 < regex.length() && MetaCharacters.exists(regex.charAt(position + 1))) {
+                chars = chars.union(MetaCharacters.getHandler(regex.charAt(position + 1)));
+                position += 2;
+            } else if (position + 2 < regex.length() && regex.charAt(position + 1) == '-'
+                    && regex.charAt(position + 2) != ']') {
+                chars = chars.union(CharClass.range(c, regex.charAt(position + 2)));
+                position += 3;
+            } else {
+                if (c == '\\') {
+                    c = escaped();
+                }
+                chars = chars.union(CharClass.of(c));
+                position++;
+            }
+        }
+        eat(']');
+
+        return negate ? chars.negate() : chars;
+    }
+
+    /**
+     * Skips the backslash at the current position.
+     *
+     * @return the escaped character
+     */
+    private char escaped() {
+        if (position + 1 >= regex.length()) {
+            throw new CompileException(String.format("Trailing backslash at position %s", position));
+        }
+        position++;
+        return regex.charAt(position);
+    }
+
+    private int readInt() {
+        int start = position;
+        while (position < regex.length() && regex.charAt(position) >= '0' && regex.charAt(position) <= '9') {
+            position++;
+        }
+        try {
+            return Integer.parseInt(regex.substring(start, position));
+        } catch (NumberFormatException e) {
+            throw new CompileException(String.format("Cannot parse value '%s' to int at position '%s'",
+                    regex.substring(start, position), start));
+        }
+    }
+
+    private void skipWhitespace() {
+        while (peek(' ')) {
+            position++;
+        }
+    }
+
+    private boolean peek(char c) {
+        return position < regex.length() && regex.charAt(position) == c;
+    }
+
+    private void eat(char c) {
+        if (!peek(c)) {
+            throw new CompileException(String.format("Expected '%s' but found %s at position %s", c,
+                    position < regex.length() ? "'" + regex.charAt(position) + "'" : "the end", position));
+        }
+        position++;
+    }
+}
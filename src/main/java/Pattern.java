@@ -1,5 +1,20 @@
+/**
+ * Compiles patterns through a shared {@link PatternCache}, so compiling the same regex with equal options again
+ * returns the same {@link Matcher}. The lazy DFA of a cached pattern gets at most its share of
+ * {@link PatternCache#DEFAULT_DFA_MEMORY}. Use {@link Compiler} directly to bypass the cache.
+ */
 public class Pattern {
+    private static final PatternCache CACHE = new PatternCache();
+
     public static Matcher compile(String regex) {
-        return new Compiler().compile(regex);
+        return CACHE.compile(regex);
+    }
+
+    public static Matcher compile(String regex, Options options) {
+        return CACHE.compile(regex, options);
+    }
+
+    public static PatternCache getCache() {
+        return CACHE;
     }
 }
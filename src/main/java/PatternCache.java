@@ -0,0 +1,135 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Bounded cache of compiled patterns, keyed by the regex and the options it was compiled with. The entries are spread
+ * over independently locked segments, each evicting its least recently used entry once it is full, so threads
+ * compiling different patterns rarely contend. Patterns are compiled outside of the locks; if two threads miss the
+ * same key at once, both compile it and the first result is kept.
+ * <p>
+ * Every cached matcher keeps lazy DFA caches per thread that uses it, of up to twice its
+ * {@link Options#getDfaCacheSize()} when it is searched. The cache bounds the sum of these on one thread by compiling
+ * its patterns with at most an equal share of the DFA memory. The share caps the requested size and is not part of
+ * the key. The caches of a thread are released once their matcher has been evicted and collected.
+ */
+public class PatternCache {
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Bound in bytes of the lazy DFA caches of all cached patterns on one thread, 128 KB per pattern by default.
+     */
+    public static final long DEFAULT_DFA_MEMORY = 64L << 20;
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long dfaCacheSize;
+
+    public PatternCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PatternCache(int capacity) {
+        this(capacity, DEFAULT_DFA_MEMORY);
+    }
+
+    /**
+     * @param dfaMemory bound in bytes of the lazy DFA caches of all cached patterns on one thread
+     */
+    public PatternCache(int capacity, long dfaMemory) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        if (dfaMemory < 0) {
+            throw new IllegalArgumentException("DFA memory must not be negative: " + dfaMemory);
+        }
+        int segmentCapacity = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+        this.dfaCacheSize = dfaMemory / (2L * segmentCapacity * SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    public Matcher compile(String regex) {
+        return compile(regex, new Options());
+    }
+
+    public Matcher compile(String regex, Options options) {
+        Key key = new Key(regex, options.copy());
+        Segment segment = segments[(key.hashCode() & Integer.MAX_VALUE) % SEGMENTS];
+
+        Matcher matcher;
+        synchronized (segment) {
+            matcher = segment.get(key);
+        }
+        if (matcher != null) {
+            return matcher;
+        }
+
+        Options compiled = key.options;
+        if (compiled.getDfaCacheSize() > dfaCacheSize) {
+            compiled = compiled.copy();
+            compiled.setDfaCacheSize(dfaCacheSize);
+        }
+        matcher = new Compiler(compiled).compile(regex);
+        synchronized (segment) {
+            Matcher existing = segment.putIfAbsent(key, matcher);
+            return existing != null ? existing : matcher;
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    private static class Segment extends LinkedHashMap<Key, Matcher> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Matcher> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private static class Key {
+        private final String regex;
+        private final Options options;
+
+        Key(String regex, Options options) {
+            this.regex = regex;
+            this.options = options;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && regex.equals(((Key) o).regex) && options.equals(((Key) o).options);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(regex, options);
+        }
+    }
+}
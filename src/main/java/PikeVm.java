@@ -0,0 +1,272 @@
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Executes a {@link Program} by advancing all threads in lock step over the input, so every character is inspected
+ * exactly once per program counter. The thread lists and capture slots are kept in a per-thread {@link Scratch}, so a
+ * call does not allocate, and empty transitions are resolved through the closures precomputed by the program.
+ * <p>
+ * With {@link Statistics}, every call reports the most threads alive at once.
+ */
+public class PikeVm {
+    private final Program program;
+    private final int slotCount;
+    private final Statistics statistics;
+    private final ThreadLocal<Scratch> scratch;
+
+    public PikeVm(Program program) {
+        this(program, null);
+    }
+
+    /**
+     * @param statistics receives the peak number of threads of every call, or null
+     */
+    public PikeVm(Program program, Statistics statistics) {
+        this.program = program;
+        this.slotCount = program.getSlotCount();
+        this.statistics = statistics;
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(program.size(), slotCount));
+    }
+
+    public boolean test(CharSequence s) {
+        Scratch scratch = this.scratch.get();
+        boolean result = test(s, scratch);
+        record(scratch);
+        return result;
+    }
+
+    private boolean test(CharSequence s, Scratch scratch) {
+        scratch.clear();
+
+        addThreads(scratch.getCurrent(), program.closure(program.getStart()));
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            SparseSet current = scratch.getCurrent();
+            SparseSet next = scratch.getNext();
+
+            for (int t = 0; t < current.size(); t++) {
+                int pc = current.get(t);
+                if (program.matches(pc, c)) {
+                    addThreads(next, program.closure(program.next(pc)));
+                }
+            }
+
+            if (next.isEmpty()) {
+                return false;
+            }
+            scratch.swap();
+        }
+
+        return findMatch(scratch.getCurrent()) >= 0;
+    }
+
+    /**
+     * Collects the patterns of a combined program which match {@code s}, like {@link LazyDfa#run}.
+     *
+     * @param unanchored whether patterns may match anywhere in the input instead of the whole input
+     * @return whether any pattern matched
+     */
+    public boolean run(CharSequence s, boolean unanchored, BitSet accepted, boolean stopAtFirst) {
+        Scratch scratch = this.scratch.get();
+        boolean result = run(s, unanchored, accepted, stopAtFirst, scratch);
+        record(scratch);
+        return result;
+    }
+
+    private boolean run(CharSequence s, boolean unanchored, BitSet accepted, boolean stopAtFirst, Scratch scratch) {
+        scratch.clear();
+        boolean matched = false;
+
+        addThreads(scratch.getCurrent(), program.closure(program.getStart()));
+
+        for (int i = 0; ; i++) {
+            SparseSet current = scratch.getCurrent();
+
+            if (unanchored || i == s.length()) {
+                for (int t = 0; t < current.size(); t++) {
+                    if (program.op(current.get(t)) == Program.MATCH) {
+                        accepted.set(program.arg(current.get(t)));
+                        matched = true;
+                    }
+                }
+                if (matched && stopAtFirst) {
+                    return true;
+                }
+            }
+
+            if (i == s.length()) {
+                return matched;
+            }
+
+            char c = s.charAt(i);
+            SparseSet next = scratch.getNext();
+            for (int t = 0; t < current.size(); t++) {
+                int pc = current.get(t);
+                if (program.matches(pc, c)) {
+                    addThreads(next, program.closure(program.next(pc)));
+                }
+            }
+            if (unanchored) {
+                addThreads(next, program.closure(program.getStart()));
+            } else if (next.isEmpty()) {
+                return false;
+            }
+            scratch.swap();
+        }
+    }
+
+    /**
+     * Matches the whole input and extracts the capture groups. Threads are ordered by priority, so the groups are
+     * taken from the highest priority thread which matches.
+     *
+     * @return the match, or null if the input does not match
+     */
+    public Match match(CharSequence s) {
+        Scratch scratch = this.scratch.get();
+        Match result = match(s, scratch);
+        record(scratch);
+        return result;
+    }
+
+    private Match match(CharSequence s, Scratch scratch) {
+        scratch.clear();
+
+        addThreads(scratch.getCurrent(), scratch.getCurrentSlots(), program.getStart(), null, 0, 0);
+
+        for (int i = 0; i < s.length(); i++) {
+            step(scratch, s.charAt(i), i + 1, Integer.MAX_VALUE);
+            if (scratch.getNext().isEmpty()) {
+                return null;
+            }
+            scratch.swap();
+        }
+
+        int pc = findMatch(scratch.getCurrent());
+        if (pc < 0) {
+            return null;
+        }
+        int[] match = Arrays.copyOfRange(scratch.getCurrentSlots(), pc * slotCount, (pc + 1) * slotCount);
+        match[1] = s.length();
+        return new Match(match);
+    }
+
+    /**
+     * Searches for the leftmost-longest match starting at or after {@code from} and extracts its capture groups.
+     * Threads are kept ordered by their start position, so when two threads reach the same instruction the one which
+     * started first wins.
+     *
+     * @param prefilter used to skip to the next possible start whenever no thread is alive
+     * @return the match, or null if there is none
+     */
+    public Match find(CharSequence s, int from, Prefilter prefilter) {
+        Scratch scratch = this.scratch.get();
+        Match result = find(s, from, prefilter, scratch);
+        record(scratch);
+        return result;
+    }
+
+    private Match find(CharSequence s, int from, Prefilter prefilter, Scratch scratch) {
+        scratch.clear();
+        int[] match = scratch.getMatchSlots();
+        boolean matched = false;
+
+        for (int i = from; ; i++) {
+            SparseSet current = scratch.getCurrent();
+            int[] slots = scratch.getCurrentSlots();
+
+            if (!matched) {
+                if (current.isEmpty()) {
+                    i = prefilter.next(s, i);
+                    if (i < 0) {
+                        break;
+                    }
+                }
+                addThreads(current, slots, program.getStart(), null, 0, i);
+            }
+
+            int pc = findMatch(current);
+            if (pc >= 0) {
+                System.arraycopy(slots, pc * slotCount, match, 0, slotCount);
+                match[1] = i;
+                matched = true;
+            }
+
+            if (i >= s.length() || current.isEmpty()) {
+                break;
+            }
+
+            step(scratch, s.charAt(i), i + 1, matched ? match[0] : Integer.MAX_VALUE);
+            scratch.swap();
+        }
+
+        return matched ? new Match(Arrays.copyOf(match, slotCount)) : null;
+    }
+
+    /**
+     * Advances the current threads over {@code c} into the next threads, ignoring threads which started after
+     * {@code maxStart}.
+     */
+    private void record(Scratch scratch) {
+        if (statistics != null) {
+            statistics.recordNfaStates(scratch.takePeak());
+        }
+    }
+
+    private void step(Scratch scratch, char c, int position, int maxStart) {
+        SparseSet current = scratch.getCurrent();
+        int[] slots = scratch.getCurrentSlots();
+
+        for (int t = 0; t < current.size(); t++) {
+            int pc = current.get(t);
+            if (slots[pc * slotCount] > maxStart) {
+                break;
+            }
+            if (program.matches(pc, c)) {
+                addThreads(scratch.getNext(), scratch.getNextSlots(), program.next(pc), slots, pc * slotCount, position);
+            }
+        }
+    }
+
+    private int findMatch(SparseSet threads) {
+        for (int t = 0; t < threads.size(); t++) {
+            if (program.op(threads.get(t)) == Program.MATCH) {
+                return threads.get(t);
+            }
+        }
+        return -1;
+    }
+
+    private void addThreads(SparseSet list, int[] closure) {
+        for (int pc : closure) {
+            list.add(pc);
+        }
+    }
+
+    /**
+     * Adds the closure of {@code origin} to the list. The new threads inherit the slots of their parent, or start
+     * without any groups at {@code position} if there is no parent.
+     */
+    private void addThreads(SparseSet list, int[] slots, int origin, int[] parentSlots, int parentOffset, int position) {
+        int[] closure = program.closure(origin);
+        int[][] saves = program.closureSaves(origin);
+
+        for (int i = 0; i < closure.length; i++) {
+            int pc = closure[i];
+            if (!list.add(pc)) {
+                continue;
+            }
+
+            int offset = pc * slotCount;
+            if (parentSlots == null) {
+                Arrays.fill(slots, offset, offset + slotCount, -1);
+                slots[offset] = position;
+            } else {
+                System.arraycopy(parentSlots, parentOffset, slots, offset, slotCount);
+            }
+            for (int slot : saves[i]) {
+                slots[offset + slot] = position;
+            }
+        }
+    }
+}
@@ -0,0 +1,328 @@
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Properties every match of a {@link Program} has, used to reject or skip input which cannot match before starting
+ * the automaton.
+ * <p>
+ * The prefix is the literal every match starts with. The required literal is the longest run of characters which are
+ * consumed, in this order, on every path from the start to a match. The length bounds are the shortest and longest
+ * paths from the start to a match, where the maximum is -1 if a path can loop. The first characters are those which
+ * can start a match, or null if the empty string matches.
+ * <p>
+ * Searches skip to the next possible start with the fastest scan the input allows: {@link String#indexOf(int)} for a
+ * single first character of a string, {@link ByteSearch} for up to three first bytes of a byte array, and a lookup in
+ * the class otherwise.
+ */
+public class Prefilter {
+    private static final int MAX_ANALYZED_SIZE = 2000;
+
+    private final String prefix;
+    private final String required;
+    private final int minLength;
+    private final int maxLength;
+    private final CharClass firstChars;
+    private final LiteralSearcher prefixSearcher;
+    private final LiteralSearcher requiredSearcher;
+    private final byte[] firstBytes;
+
+    public Prefilter(String prefix, String required) {
+        this(prefix, required, 0, -1, null);
+    }
+
+    public Prefilter(String prefix, String required, int minLength, int maxLength, CharClass firstChars) {
+        this.prefix = prefix;
+        this.required = required;
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+        this.firstChars = firstChars;
+        this.prefixSearcher = prefix.isEmpty() ? null : new LiteralSearcher(prefix);
+        this.requiredSearcher = required.isEmpty() || required.equals(prefix) ? null : new LiteralSearcher(required);
+        this.firstBytes = firstChars == null ? null : smallSet(firstChars);
+    }
+
+    /**
+     * @return the chars of the class as bytes, or null if there are more than {@link ByteSearch#MAX_SET_SIZE} or
+     * some do not fit in a byte
+     */
+    private static byte[] smallSet(CharClass chars) {
+        byte[] set = new byte[ByteSearch.MAX_SET_SIZE];
+        int size = 0;
+        for (int i = 0; i < chars.rangeCount(); i++) {
+            if (chars.to(i) > 0xff || chars.to(i) - chars.from(i) + size >= set.length) {
+                return null;
+            }
+            for (int c = chars.from(i); c <= chars.to(i); c++) {
+                set[size++] = (byte) c;
+            }
+        }
+        return size == 0 ? null : Arrays.copyOf(set, size);
+    }
+
+    public static Prefilter of(Program program) {
+        String prefix = chain(program, singleChar(program, program.closure(program.getStart())));
+        String required = prefix;
+
+        if (program.size() <= MAX_ANALYZED_SIZE) {
+            boolean[] isRequired = new boolean[program.size()];
+            for (int pc = 0; pc < program.size(); pc++) {
+                isRequired[pc] = program.op(pc) == Program.CHAR && !reachesMatchWithout(program, pc);
+            }
+
+            for (int pc = 0; pc < program.size(); pc++) {
+                if (isRequired[pc] && !hasRequiredPredecessor(program, pc, isRequired)) {
+                    String literal = chain(program, pc);
+                    if (literal.length() > required.length()) {
+                        required = literal;
+                    }
+                }
+            }
+        }
+
+        int[] bounds = lengthBounds(program);
+        return new Prefilter(prefix, required, bounds[0], bounds[1], firstChars(program));
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public String getRequired() {
+        return required;
+    }
+
+    public int getMinLength() {
+        return minLength;
+    }
+
+    /**
+     * @return the length of the longest match, or -1 if matches can be arbitrarily long
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * @return the characters a match can start with, or null if the empty string matches or any character can start a
+     * match
+     */
+    public CharClass getFirstChars() {
+        return firstChars;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        BinaryFormat.writeString(out, prefix);
+        BinaryFormat.writeString(out, required);
+        out.writeInt(minLength);
+        out.writeInt(maxLength);
+        out.writeBoolean(firstChars != null);
+        if (firstChars != null) {
+            firstChars.writeTo(out);
+        }
+    }
+
+    public static Prefilter readFrom(ByteBuffer in) throws IOException {
+        String prefix = BinaryFormat.readString(in);
+        String required = BinaryFormat.readString(in);
+        int minLength = BinaryFormat.readInt(in);
+        int maxLength = BinaryFormat.readInt(in);
+        if (minLength < 0 || maxLength < -1 || (maxLength >= 0 && maxLength < minLength) || !in.hasRemaining()) {
+            throw new StreamCorruptedException("Invalid prefilter");
+        }
+        CharClass firstChars = in.get() != 0 ? CharClass.readFrom(in) : null;
+        return new Prefilter(prefix, required, minLength, maxLength, firstChars);
+    }
+
+    /**
+     * @return the first position at or after {@code from} at which a match can start, or -1 if there is none
+     */
+    public int next(CharSequence s, int from) {
+        if (prefixSearcher != null) {
+            return prefixSearcher.indexOf(s, from);
+        }
+        if (firstChars != null) {
+            if (firstBytes != null && s instanceof ByteSequence) {
+                return ((ByteSequence) s).indexOfAny(firstBytes, from);
+            }
+            if (firstBytes != null && firstBytes.length == 1 && s instanceof String) {
+                return ((String) s).indexOf(firstBytes[0] & 0xff, from);
+            }
+            for (int i = from; i < s.length(); i++) {
+                if (firstChars.matches(s.charAt(i))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        return from <= s.length() ? from : -1;
+    }
+
+    /**
+     * @return false if the input after {@code from} cannot contain a match
+     */
+    public boolean mayMatch(CharSequence s, int from) {
+        if (s.length() - from < minLength) {
+            return false;
+        }
+        LiteralSearcher searcher = requiredSearcher != null ? requiredSearcher : prefixSearcher;
+        return searcher == null || searcher.indexOf(s, from) >= 0;
+    }
+
+    /**
+     * @return false if the whole input cannot match, checking the length first and the required literal last
+     */
+    public boolean mayMatchWhole(CharSequence s) {
+        int length = s.length();
+        if (length < minLength || (maxLength >= 0 && length > maxLength)) {
+            return false;
+        }
+        if (firstChars != null && (length == 0 || !firstChars.matches(s.charAt(0)))) {
+            return false;
+        }
+        if (length < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (s.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return requiredSearcher == null || requiredSearcher.indexOf(s, prefix.length()) >= 0;
+    }
+
+    /**
+     * The shortest path is found breadth first over the consuming instructions, the longest by relaxing them in
+     * topological order, which fails to visit every instruction if there is a loop.
+     *
+     * @return the minimum and the maximum length of a match
+     */
+    private static int[] lengthBounds(Program program) {
+        int[] depth = new int[program.size()];
+        boolean[] visited = new boolean[program.size()];
+        int[] inDegree = new int[program.size()];
+        Deque<Integer> queue = new ArrayDeque<>();
+        int minLength = -1;
+        int reachable = 0;
+
+        for (int pc : program.closure(program.getStart())) {
+            visited[pc] = true;
+            queue.add(pc);
+        }
+        while (!queue.isEmpty()) {
+            int pc = queue.poll();
+            reachable++;
+            if (program.op(pc) == Program.MATCH && minLength < 0) {
+                minLength = depth[pc];
+            }
+            if (program.isConsuming(pc)) {
+                for (int successor : program.closure(program.next(pc))) {
+                    inDegree[successor]++;
+                    if (!visited[successor]) {
+                        visited[successor] = true;
+                        depth[successor] = depth[pc] + 1;
+                        queue.add(successor);
+                    }
+                }
+            }
+        }
+        if (minLength < 0) {
+            return new int[]{0, -1};
+        }
+
+        int[] longest = new int[program.size()];
+        int maxLength = 0;
+        int processed = 0;
+        for (int pc : program.closure(program.getStart())) {
+            if (inDegree[pc] == 0) {
+                queue.add(pc);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int pc = queue.poll();
+            processed++;
+            if (program.op(pc) == Program.MATCH) {
+                maxLength = Math.max(maxLength, longest[pc]);
+            }
+            if (program.isConsuming(pc)) {
+                for (int successor : program.closure(program.next(pc))) {
+                    longest[successor] = Math.max(longest[successor], longest[pc] + 1);
+                    if (--inDegree[successor] == 0) {
+                        queue.add(successor);
+                    }
+                }
+            }
+        }
+        return new int[]{minLength, processed == reachable ? maxLength : -1};
+    }
+
+    private static CharClass firstChars(Program program) {
+        CharClass first = CharClass.NONE;
+        for (int pc : program.closure(program.getStart())) {
+            if (program.op(pc) == Program.MATCH) {
+                return null;
+            }
+            if (program.isConsuming(pc)) {
+                first = first.union(program.toCharClass(pc));
+            }
+        }
+        return first.equals(CharClass.ANY) ? null : first;
+    }
+
+    /**
+     * @return the literal consumed by the chain of {@link Program#CHAR} instructions starting at {@code pc}, where
+     * every instruction is the only successor of its predecessor
+     */
+    private static String chain(Program program, int pc) {
+        StringBuilder literal = new StringBuilder();
+        boolean[] visited = new boolean[program.size()];
+
+        while (pc >= 0 && !visited[pc]) {
+            visited[pc] = true;
+            literal.append((char) program.arg(pc));
+            pc = singleChar(program, program.closure(program.next(pc)));
+        }
+        return literal.toString();
+    }
+
+    private static int singleChar(Program program, int[] closure) {
+        return closure.length == 1 && program.op(closure[0]) == Program.CHAR ? closure[0] : -1;
+    }
+
+    private static boolean hasRequiredPredecessor(Program program, int pc, boolean[] isRequired) {
+        for (int predecessor = 0; predecessor < program.size(); predecessor++) {
+            if (isRequired[predecessor] && singleChar(program, program.closure(program.next(predecessor))) == pc) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean reachesMatchWithout(Program program, int excluded) {
+        boolean[] visited = new boolean[program.size()];
+        Deque<Integer> queue = new ArrayDeque<>();
+        enqueue(program.closure(program.getStart()), excluded, visited, queue);
+
+        while (!queue.isEmpty()) {
+            int pc = queue.poll();
+            if (program.op(pc) == Program.MATCH) {
+                return true;
+            }
+            enqueue(program.closure(program.next(pc)), excluded, visited, queue);
+        }
+        return false;
+    }
+
+    private static void enqueue(int[] closure, int excluded, boolean[] visited, Deque<Integer> queue) {
+        for (int pc : closure) {
+            if (pc != excluded && !visited[pc]) {
+                visited[pc] = true;
+                queue.add(pc);
+            }
+        }
+    }
+}
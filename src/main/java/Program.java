@@ -0,0 +1,312 @@
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Flat representation of a compiled NFA. Instruction {@code pc} is described by {@code ops[pc]} and its operands
+ * {@code args[pc]}, {@code args2[pc]} and {@code next[pc]}:
+ * <ul>
+ * <li>{@link #CHAR}: consumes the character {@code args[pc]} and continues at {@code next[pc]}</li>
+ * <li>{@link #RANGE}: consumes a character between {@code args[pc]} and {@code args2[pc]} and continues at
+ * {@code next[pc]}</li>
+ * <li>{@link #CLASS}: consumes a character accepted by {@code classes[args[pc]]} and continues at {@code next[pc]}</li>
+ * <li>{@link #SPLIT}: continues at {@code next[pc]} and, with lower priority, at {@code args[pc]}</li>
+ * <li>{@link #JMP}: continues at {@code next[pc]}</li>
+ * <li>{@link #MATCH}: accepts the input for pattern {@code args[pc]}, which is always 0 unless several patterns
+ * were combined into one program</li>
+ * <li>{@link #FAIL}: rejects the thread</li>
+ * <li>{@link #SAVE}: records the current position in capture slot {@code args[pc]} and continues at
+ * {@code next[pc]}</li>
+ * </ul>
+ * Slot {@code 2 * g} holds the start and slot {@code 2 * g + 1} the end of group {@code g}, where group 0 is the whole
+ * match.
+ */
+public class Program {
+    public static final int CHAR = 0;
+    public static final int RANGE = 1;
+    public static final int CLASS = 2;
+    public static final int SPLIT = 3;
+    public static final int JMP = 4;
+    public static final int MATCH = 5;
+    public static final int FAIL = 6;
+    public static final int SAVE = 7;
+
+    private static final int[] NO_SAVES = new int[0];
+
+    private final int[] ops;
+    private final int[] args;
+    private final int[] args2;
+    private final int[] next;
+    private final CharMatcher[] classes;
+    private final int start;
+    private final int slotCount;
+    private final int[][] closures;
+    private final int[][][] closureSaves;
+
+    public Program(int[] ops, int[] args, int[] args2, int[] next, CharMatcher[] classes, int start, int slotCount) {
+        this.ops = ops;
+        this.args = args;
+        this.args2 = args2;
+        this.next = next;
+        this.classes = classes;
+        this.start = start;
+        this.slotCount = slotCount;
+        this.closures = new int[ops.length][];
+        this.closureSaves = new int[ops.length][][];
+        computeClosures();
+    }
+
+    public int size() {
+        return ops.length;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * @return the number of capture slots, two for the whole match and two for every group
+     */
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    public int op(int pc) {
+        return ops[pc];
+    }
+
+    public int arg(int pc) {
+        return args[pc];
+    }
+
+    public int arg2(int pc) {
+        return args2[pc];
+    }
+
+    public int next(int pc) {
+        return next[pc];
+    }
+
+    public CharMatcher characterClass(int index) {
+        return classes[index];
+    }
+
+    /**
+     * Writes the instructions and character classes. The closures are not written, they are recomputed when the
+     * program is read.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(start);
+        out.writeInt(slotCount);
+        BinaryFormat.writeInts(out, ops);
+        BinaryFormat.writeInts(out, args);
+        BinaryFormat.writeInts(out, args2);
+        BinaryFormat.writeInts(out, next);
+        out.writeInt(classes.length);
+        for (int i = 0; i < classes.length; i++) {
+            CharMatcher matcher = classes[i];
+            CharClass charClass = matcher instanceof CharClass
+                    ? (CharClass) matcher
+                    : CharClass.matching(c -> matcher.matches((char) c));
+            charClass.writeTo(out);
+        }
+    }
+
+    public static Program readFrom(ByteBuffer in) throws IOException {
+        int start = BinaryFormat.readInt(in);
+        int slotCount = BinaryFormat.readInt(in);
+        int[] ops = BinaryFormat.readInts(in);
+        int[] args = BinaryFormat.readInts(in);
+        int[] args2 = BinaryFormat.readInts(in);
+        int[] next = BinaryFormat.readInts(in);
+        CharMatcher[] classes = new CharMatcher[BinaryFormat.readInt(in)];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = CharClass.readFrom(in);
+        }
+
+        int size = ops.length;
+        if (args.length != size || args2.length != size || next.length != size || start < 0 || start >= size) {
+            throw new StreamCorruptedException("Invalid program");
+        }
+        for (int pc = 0; pc < size; pc++) {
+            boolean jumps = ops[pc] != MATCH && ops[pc] != FAIL;
+            if (ops[pc] < CHAR || ops[pc] > SAVE || (jumps && (next[pc] < 0 || next[pc] >= size))
+                    || (ops[pc] == SPLIT && (args[pc] < 0 || args[pc] >= size))
+                    || (ops[pc] == CLASS && (args[pc] < 0 || args[pc] >= classes.length))
+                    || (ops[pc] == SAVE && (args[pc] < 0 || args[pc] >= slotCount))) {
+                throw new StreamCorruptedException("Invalid instruction at " + pc);
+            }
+        }
+        return new Program(ops, args, args2, next, classes, start, slotCount);
+    }
+
+    /**
+     * @return the consuming and {@link #MATCH} instructions reachable from {@code pc} without consuming a character,
+     * in priority order and without duplicates. Only available for the start and for the successors of consuming
+     * instructions.
+     */
+    public int[] closure(int pc) {
+        return closures[pc];
+    }
+
+    /**
+     * @return for every entry of {@link #closure(int)} the capture slots written on the way to it, in order
+     */
+    public int[][] closureSaves(int pc) {
+        return closureSaves[pc];
+    }
+
+    /**
+     * @return the characters consumed by the consuming instruction at {@code pc}
+     */
+    public CharClass toCharClass(int pc) {
+        switch (ops[pc]) {
+            case CHAR:
+                return CharClass.of((char) args[pc]);
+            case RANGE:
+                return CharClass.range((char) args[pc], (char) args2[pc]);
+            default:
+                CharMatcher matcher = classes[args[pc]];
+                if (matcher instanceof CharClass) {
+                    return (CharClass) matcher;
+                }
+                return CharClass.matching(c -> matcher.matches((char) c));
+        }
+    }
+
+    public boolean isConsuming(int pc) {
+        return ops[pc] == CHAR || ops[pc] == RANGE || ops[pc] == CLASS;
+    }
+
+    /**
+     * @return whether the consuming instruction at {@code pc} accepts {@code c}
+     */
+    public boolean matches(int pc, char c) {
+        switch (ops[pc]) {
+            case CHAR:
+                return c == args[pc];
+            case RANGE:
+                return c >= args[pc] && c <= args2[pc];
+            case CLASS:
+                return classes[args[pc]].matches(c);
+            default:
+                return false;
+        }
+    }
+
+    private void computeClosures() {
+        SparseSet visited = new SparseSet(ops.length);
+        int[] stack = new int[2 * ops.length + 1];
+        int[] pushedBy = new int[2 * ops.length + 1];
+        int[] parents = new int[ops.length];
+        int[] closure = new int[ops.length];
+
+        computeClosure(start, visited, stack, pushedBy, parents, closure);
+        for (int pc = 0; pc < ops.length; pc++) {
+            if (isConsuming(pc) && closures[next[pc]] == null) {
+                computeClosure(next[pc], visited, stack, pushedBy, parents, closure);
+            }
+        }
+    }
+
+    private void computeClosure(int origin, SparseSet visited, int[] stack, int[] pushedBy, int[] parents,
+                                int[] closure) {
+        visited.clear();
+        int size = 0;
+
+        int top = 0;
+        stack[top] = origin;
+        pushedBy[top++] = -1;
+        while (top > 0) {
+            int pc = stack[--top];
+            int parent = pushedBy[top];
+            if (!visited.add(pc)) {
+                continue;
+            }
+            parents[pc] = parent;
+
+            switch (ops[pc]) {
+                case JMP:
+                case SAVE:
+                    stack[top] = next[pc];
+                    pushedBy[top++] = pc;
+                    break;
+                case SPLIT:
+                    stack[top] = args[pc];
+                    pushedBy[top++] = pc;
+                    stack[top] = next[pc];
+                    pushedBy[top++] = pc;
+                    break;
+                case FAIL:
+                    break;
+                default:
+                    closure[size++] = pc;
+            }
+        }
+
+        closures[origin] = Arrays.copyOf(closure, size);
+        closureSaves[origin] = new int[size][];
+        for (int i = 0; i < size; i++) {
+            closureSaves[origin][i] = savesOnPath(closure[i], parents);
+        }
+    }
+
+    private int[] savesOnPath(int pc, int[] parents) {
+        int count = 0;
+        for (int p = parents[pc]; p >= 0; p = parents[p]) {
+            if (ops[p] == SAVE) {
+                count++;
+            }
+        }
+        if (count == 0) {
+            return NO_SAVES;
+        }
+
+        int[] saves = new int[count];
+        for (int p = parents[pc]; p >= 0; p = parents[p]) {
+            if (ops[p] == SAVE) {
+                saves[--count] = args[p];
+            }
+        }
+        return saves;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder listing = new StringBuilder();
+        for (int pc = 0; pc < ops.length; pc++) {
+            listing.append(pc == start ? '>' : ' ').append(pc).append(": ");
+            switch (ops[pc]) {
+                case CHAR:
+                    listing.append("char '").append((char) args[pc]).append("' -> ").append(next[pc]);
+                    break;
+                case RANGE:
+                    listing.append("range '").append((char) args[pc]).append("'-'").append((char) args2[pc])
+                            .append("' -> ").append(next[pc]);
+                    break;
+                case CLASS:
+                    listing.append("class ").append(classes[args[pc]]).append(" -> ").append(next[pc]);
+                    break;
+                case SPLIT:
+                    listing.append("split ").append(next[pc]).append(", ").append(args[pc]);
+                    break;
+                case JMP:
+                    listing.append("jmp ").append(next[pc]);
+                    break;
+                case MATCH:
+                    listing.append("match ").append(args[pc]);
+                    break;
+                case FAIL:
+                    listing.append("fail");
+                    break;
+                case SAVE:
+                    listing.append("save ").append(args[pc]).append(" -> ").append(next[pc]);
+                    break;
+            }
+            listing.append('\n');
+        }
+        return listing.toString();
+    }
+}
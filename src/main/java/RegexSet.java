@@ -0,0 +1,75 @@
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Matches an input against many patterns in a single pass. All patterns are compiled into one automaton whose accepting
+ * states are tagged with the index of their pattern.
+ */
+public class RegexSet {
+    private final Program program;
+    private final int size;
+    private final PikeVm vm;
+    private final LazyDfa anchored;
+    private final LazyDfa unanchored;
+
+    public RegexSet(Program program, int size, Options options) {
+        this.program = program;
+        this.size = size;
+        this.vm = new PikeVm(program);
+        this.anchored = options.getDfaCacheSize() > 0 ? new LazyDfa(program, options.getDfaCacheSize(), false) : null;
+        this.unanchored = options.getDfaCacheSize() > 0 ? new LazyDfa(program, options.getDfaCacheSize(), true) : null;
+    }
+
+    public static RegexSet compile(List<String> regexes) {
+        return new Compiler().compileSet(regexes);
+    }
+
+    public static RegexSet compile(List<String> regexes, Options options) {
+        return new Compiler(options).compileSet(regexes);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Program getProgram() {
+        return program;
+    }
+
+    /**
+     * @return the indices of the patterns matching the whole input
+     */
+    public BitSet matches(CharSequence s) {
+        BitSet accepted = new BitSet(size);
+        run(anchored, s, false, accepted, false);
+        return accepted;
+    }
+
+    /**
+     * @return the indices of the patterns matching anywhere in the input
+     */
+    public BitSet search(CharSequence s) {
+        BitSet accepted = new BitSet(size);
+        run(unanchored, s, true, accepted, false);
+        return accepted;
+    }
+
+    /**
+     * Stops scanning as soon as any pattern matched.
+     *
+     * @return the index of a pattern matching anywhere in the input, or -1 if there is none
+     */
+    public int searchFirst(CharSequence s) {
+        BitSet accepted = new BitSet(size);
+        run(unanchored, s, true, accepted, true);
+        return accepted.nextSetBit(0);
+    }
+
+    private void run(LazyDfa dfa, CharSequence s, boolean unanchored, BitSet accepted, boolean stopAtFirst) {
+        if (dfa != null && dfa.run(s, accepted, stopAtFirst) != LazyDfa.FAILED) {
+            return;
+        }
+        accepted.clear();
+        vm.run(s, unanchored, accepted, stopAtFirst);
+    }
+}
@@ -0,0 +1,122 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reverses the edges of a {@link Program}, so the result accepts exactly the reversed strings. Scanning it backward
+ * from the end of a match finds where the match starts.
+ * <p>
+ * Every consuming instruction is kept with its characters. Its successors become the consuming instructions which
+ * could precede it, and the program starts with the instructions which can be followed by a match. Capture groups
+ * are dropped.
+ */
+public class Reversal {
+    private int[] ops;
+    private int[] args;
+    private int[] args2;
+    private int[] next;
+    private int size;
+
+    public Program reverse(Program program) {
+        List<List<Integer>> predecessors = new ArrayList<>();
+        for (int pc = 0; pc < program.size(); pc++) {
+            predecessors.add(new ArrayList<>());
+        }
+        List<Integer> last = new ArrayList<>();
+        for (int pc = 0; pc < program.size(); pc++) {
+            if (!program.isConsuming(pc)) {
+                continue;
+            }
+            for (int successor : program.closure(program.next(pc))) {
+                if (program.op(successor) == Program.MATCH) {
+                    if (!last.contains(pc)) {
+                        last.add(pc);
+                    }
+                } else {
+                    predecessors.get(successor).add(pc);
+                }
+            }
+        }
+        boolean[] first = new boolean[program.size()];
+        boolean empty = false;
+        for (int pc : program.closure(program.getStart())) {
+            first[pc] = true;
+            empty |= program.op(pc) == Program.MATCH;
+        }
+
+        ops = new int[2 * program.size()];
+        args = new int[ops.length];
+        args2 = new int[ops.length];
+        next = new int[ops.length];
+        size = 0;
+
+        List<CharMatcher> classes = new ArrayList<>();
+        int[] reversed = new int[program.size()];
+        for (int pc = 0; pc < program.size(); pc++) {
+            if (program.isConsuming(pc)) {
+                reversed[pc] = allocate(1);
+                ops[reversed[pc]] = program.op(pc);
+                args[reversed[pc]] = program.arg(pc);
+                args2[reversed[pc]] = program.arg2(pc);
+                if (program.op(pc) == Program.CLASS) {
+                    args[reversed[pc]] = classes.size();
+                    classes.add(program.characterClass(program.arg(pc)));
+                }
+            }
+        }
+
+        int start = emitBlock(last, reversed, empty);
+        for (int pc = 0; pc < program.size(); pc++) {
+            if (program.isConsuming(pc)) {
+                int block = emitBlock(predecessors.get(pc), reversed, first[pc]);
+                next[reversed[pc]] = block;
+            }
+        }
+
+        return new Program(Arrays.copyOf(ops, size), Arrays.copyOf(args, size), Arrays.copyOf(args2, size),
+                Arrays.copyOf(next, size), classes.toArray(new CharMatcher[0]), start, 2);
+    }
+
+    /**
+     * Appends a chain of {@link Program#SPLIT} instructions, laid out like {@link Lowering} lays out a node, which
+     * continues at the reversed instructions and, if {@code match}, accepts.
+     *
+     * @return the entry of the block
+     */
+    private int emitBlock(List<Integer> targets, int[] reversed, boolean match) {
+        int alternatives = targets.size() + (match ? 1 : 0);
+        if (alternatives == 0) {
+            int pc = allocate(1);
+            ops[pc] = Program.FAIL;
+            return pc;
+        }
+
+        int entry = allocate(2 * alternatives - 1);
+        int firstAlternative = entry + alternatives - 1;
+        for (int i = 0; i < alternatives - 1; i++) {
+            ops[entry + i] = Program.SPLIT;
+            next[entry + i] = firstAlternative + i;
+            args[entry + i] = i < alternatives - 2 ? entry + i + 1 : firstAlternative + alternatives - 1;
+        }
+        for (int i = 0; i < targets.size(); i++) {
+            ops[firstAlternative + i] = Program.JMP;
+            next[firstAlternative + i] = reversed[targets.get(i)];
+        }
+        if (match) {
+            ops[firstAlternative + alternatives - 1] = Program.MATCH;
+        }
+        return entry;
+    }
+
+    private int allocate(int count) {
+        if (size + count > ops.length) {
+            int length = Math.max(2 * ops.length, size + count);
+            ops = Arrays.copyOf(ops, length);
+            args = Arrays.copyOf(args, length);
+            args2 = Arrays.copyOf(args2, length);
+            next = Arrays.copyOf(next, length);
+        }
+        size += count;
+        return size - count;
+    }
+}
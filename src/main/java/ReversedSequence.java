@@ -0,0 +1,42 @@
+/**
+ * Presents a region of a {@link CharSequence} backward, so automata which scan forward can scan it from its end.
+ * Index {@code i} of the view is index {@code to - 1 - i} of the underlying sequence. Nothing is copied.
+ */
+public class ReversedSequence implements CharSequence {
+    private final CharSequence s;
+    private final int from;
+    private final int to;
+
+    public ReversedSequence(CharSequence s, int from, int to) {
+        if (from < 0 || from > to || to > s.length()) {
+            throw new IndexOutOfBoundsException();
+        }
+        this.s = s;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    public int length() {
+        return to - from;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return s.charAt(to - 1 - index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new ReversedSequence(s, to - end, to - start);
+    }
+
+    @Override
+    public String toString() {
+        char[] chars = new char[length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = charAt(i);
+        }
+        return new String(chars);
+    }
+}
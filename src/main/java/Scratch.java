@@ -0,0 +1,88 @@
+/**
+ * Mutable state needed while simulating an automaton with {@code size} states. Instances are kept per thread and
+ * reused across calls, so matching does not allocate.
+ * <p>
+ * Every state in the current and next set owns {@code slotCount} consecutive capture slots in
+ * {@link #getCurrentSlots()} and {@link #getNextSlots()}, starting at {@code state * slotCount}.
+ */
+public class Scratch {
+    private final int slotCount;
+    private SparseSet current;
+    private SparseSet next;
+    private int[] currentSlots;
+    private int[] nextSlots;
+    private final int[] matchSlots;
+    private int peak;
+
+    public Scratch(int size) {
+        this(size, 0);
+    }
+
+    public Scratch(int size, int slotCount) {
+        this.slotCount = slotCount;
+        current = new SparseSet(size);
+        next = new SparseSet(size);
+        currentSlots = new int[size * slotCount];
+        nextSlots = new int[size * slotCount];
+        matchSlots = new int[slotCount];
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    public SparseSet getCurrent() {
+        return current;
+    }
+
+    public SparseSet getNext() {
+        return next;
+    }
+
+    public int[] getCurrentSlots() {
+        return currentSlots;
+    }
+
+    public int[] getNextSlots() {
+        return nextSlots;
+    }
+
+    /**
+     * @return the slots of the best match found so far
+     */
+    public int[] getMatchSlots() {
+        return matchSlots;
+    }
+
+    /**
+     * Makes the next states the current ones and clears the next states.
+     */
+    public void swap() {
+        SparseSet swap = current;
+        current = next;
+        next = swap;
+        next.clear();
+
+        int[] swapSlots = currentSlots;
+        currentSlots = nextSlots;
+        nextSlots = swapSlots;
+
+        if (current.size() > peak) {
+            peak = current.size();
+        }
+    }
+
+    /**
+     * @return the most states which were current at once since the last call, which resets the count
+     */
+    public int takePeak() {
+        int peak = this.peak;
+        this.peak = 0;
+        return peak;
+    }
+
+    public void clear() {
+        current.clear();
+        next.clear();
+    }
+}
@@ -0,0 +1,191 @@
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Rewrites an {@link Ast} bottom-up into an equivalent one that compiles to a smaller NFA:
+ * <ul>
+ * <li>single characters and classes among the branches of an alternation are merged into one class, so
+ * {@code a|b|c} becomes {@code [abc]}</li>
+ * <li>branches starting with the same subexpression share it, so {@code abc|abd} becomes {@code ab[cd]}</li>
+ * <li>an empty branch makes the rest optional, so {@code a|} becomes {@code a?}</li>
+ * <li>nested quantifiers collapse, so {@code (?:a*)*} becomes {@code a*} and {@code (?:a+)?} becomes {@code a*}</li>
+ * <li>empty subexpressions, such as {@code (?:)} or {@code x{0}}, and nested concatenations disappear</li>
+ * </ul>
+ * The match semantics are leftmost-longest, so the order of the branches of an alternation only matters for which
+ * path sets the capture groups. If the expression has capture groups, only rewrites that keep that order are applied:
+ * adjacent branches are merged and factored, and only a trailing empty branch makes the rest optional. Capture groups
+ * are kept, even empty ones, unless they are dropped because nobody extracts them.
+ */
+public class Simplifier {
+    private final boolean dropGroups;
+    private boolean reorder;
+
+    /**
+     * @param dropGroups whether to replace capture groups with their contents
+     */
+    public Simplifier(boolean dropGroups) {
+        this.dropGroups = dropGroups;
+    }
+
+    public Ast simplify(Ast ast) {
+        reorder = dropGroups || !ast.hasGroups();
+        return rewrite(ast);
+    }
+
+    private Ast rewrite(Ast ast) {
+        if (ast instanceof Ast.Concat) {
+            List<Ast> items = new ArrayList<>();
+            for (Ast item : ((Ast.Concat) ast).getItems()) {
+                items.add(rewrite(item));
+            }
+            return concat(items);
+        } else if (ast instanceof Ast.Alternation) {
+            List<Ast> branches = new ArrayList<>();
+            for (Ast branch : ((Ast.Alternation) ast).getBranches()) {
+                branches.add(rewrite(branch));
+            }
+            return alternation(branches);
+        } else if (ast instanceof Ast.Repeat) {
+            Ast.Repeat repeat = (Ast.Repeat) ast;
+            return repeat(rewrite(repeat.getChild()), repeat.getMin(), repeat.getMax());
+        } else if (ast instanceof Ast.Group) {
+            Ast.Group group = (Ast.Group) ast;
+            Ast child = rewrite(group.getChild());
+            return dropGroups ? child : new Ast.Group(child, group.getIndex());
+        }
+        return ast;
+    }
+
+    private Ast concat(List<Ast> items) {
+        List<Ast> flattened = new ArrayList<>();
+        for (Ast item : items) {
+            if (item instanceof Ast.Concat) {
+                flattened.addAll(((Ast.Concat) item).getItems());
+            } else if (item != Ast.Empty.INSTANCE) {
+                flattened.add(item);
+            }
+        }
+
+        if (flattened.isEmpty()) {
+            return Ast.Empty.INSTANCE;
+        }
+        return flattened.size() == 1 ? flattened.get(0) : new Ast.Concat(flattened);
+    }
+
+    private Ast alternation(List<Ast> branches) {
+        LinkedHashSet<Ast> unique = new LinkedHashSet<>();
+        for (Ast branch : branches) {
+            if (branch instanceof Ast.Alternation) {
+                unique.addAll(((Ast.Alternation) branch).getBranches());
+            } else {
+                unique.add(branch);
+            }
+        }
+
+        List<Ast> merged = mergeChars(new ArrayList<>(unique));
+        List<Ast> factored = factor(merged);
+        if (factored.size() < merged.size()) {
+            return alternation(factored);
+        }
+
+        int empty = factored.indexOf(Ast.Empty.INSTANCE);
+        if (empty >= 0 && factored.size() > 1 && (reorder || empty == factored.size() - 1)) {
+            factored.remove(empty);
+            return repeat(alternation(factored), 0, 1);
+        }
+        return factored.size() == 1 ? factored.get(0) : new Ast.Alternation(factored);
+    }
+
+    /**
+     * Merges the character classes among the branches into the first of them, or only runs of adjacent ones if the
+     * branches must keep their order.
+     */
+    private List<Ast> mergeChars(List<Ast> branches) {
+        List<Ast> merged = new ArrayList<>();
+        int merging = -1;
+        for (Ast branch : branches) {
+            if (branch instanceof Ast.Chars && merging >= 0) {
+                CharClass chars = ((Ast.Chars) merged.get(merging)).getChars();
+                merged.set(merging, new Ast.Chars(chars.union(((Ast.Chars) branch).getChars())));
+                continue;
+            }
+            if (branch instanceof Ast.Chars) {
+                merging = merged.size();
+            } else if (!reorder) {
+                merging = -1;
+            }
+            merged.add(branch);
+        }
+        return merged;
+    }
+
+    /**
+     * Replaces branches starting with the same subexpression by one branch that starts with it, followed by the
+     * alternation of the rest of the branches. Only adjacent branches are combined if the branches must keep their
+     * order.
+     */
+    private List<Ast> factor(List<Ast> branches) {
+        List<Ast> factored = new ArrayList<>();
+        boolean[] done = new boolean[branches.size()];
+        for (int i = 0; i < branches.size(); i++) {
+            if (done[i]) {
+                continue;
+            }
+            Ast first = first(branches.get(i));
+            List<Ast> rests = new ArrayList<>();
+            rests.add(rest(branches.get(i)));
+            for (int j = i + 1; j < branches.size(); j++) {
+                if (first(branches.get(j)).equals(first)) {
+                    rests.add(rest(branches.get(j)));
+                    done[j] = true;
+                } else if (!reorder) {
+                    break;
+                }
+            }
+
+            if (rests.size() == 1) {
+                factored.add(branches.get(i));
+            } else {
+                factored.add(concat(List.of(first, alternation(rests))));
+            }
+        }
+        return factored;
+    }
+
+    private static Ast first(Ast branch) {
+        return branch instanceof Ast.Concat ? ((Ast.Concat) branch).getItems().get(0) : branch;
+    }
+
+    private Ast rest(Ast branch) {
+        if (!(branch instanceof Ast.Concat)) {
+            return Ast.Empty.INSTANCE;
+        }
+        List<Ast> items = ((Ast.Concat) branch).getItems();
+        return concat(items.subList(1, items.size()));
+    }
+
+    /**
+     * @param max the maximum number of repetitions, or -1 if unbounded
+     */
+    private Ast repeat(Ast child, int min, int max) {
+        if (child == Ast.Empty.INSTANCE || max == 0) {
+            return Ast.Empty.INSTANCE;
+        }
+        if (min == 1 && max == 1) {
+            return child;
+        }
+
+        if (child instanceof Ast.Repeat && !((Ast.Repeat) child).getChild().hasGroups()) {
+            Ast.Repeat inner = (Ast.Repeat) child;
+            if (inner.getMin() == 0 && inner.getMax() == -1) {
+                return inner;
+            } else if (inner.getMin() == 1 && inner.getMax() == -1) {
+                return repeat(inner.getChild(), min, -1);
+            } else if (inner.getMin() == 0 && inner.getMax() == 1) {
+                return repeat(inner.getChild(), 0, max);
+            }
+        }
+        return new Ast.Repeat(child, min, max);
+    }
+}
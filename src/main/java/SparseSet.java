@@ -0,0 +1,47 @@
+/**
+ * Set of dense ints in {@code [0, capacity)} with constant time insertion, lookup and clearing. Iteration follows
+ * insertion order. See Briggs and Torczon, "An efficient representation for sparse sets".
+ */
+public class SparseSet {
+    private final int[] dense;
+    private final int[] sparse;
+    private int size = 0;
+
+    public SparseSet(int capacity) {
+        dense = new int[capacity];
+        sparse = new int[capacity];
+    }
+
+    public boolean contains(int value) {
+        int index = sparse[value];
+        return index < size && dense[index] == value;
+    }
+
+    /**
+     * @return false if the value was already present
+     */
+    public boolean add(int value) {
+        if (contains(value)) {
+            return false;
+        }
+        sparse[value] = size;
+        dense[size++] = value;
+        return true;
+    }
+
+    public int get(int index) {
+        return dense[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
@@ -0,0 +1,234 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters of one compiled pattern, collected when it is compiled with {@link Options#setStatistics(boolean)}. A
+ * matcher without statistics only checks for them once per call.
+ * <p>
+ * The counters are updated from any number of threads without locking and can be read at any time, either as a
+ * consistent-enough {@link #snapshot()} or over JMX after {@link #register()}. The UTF-8 program of a pattern reports
+ * to the same statistics, counting bytes as characters.
+ */
+public class Statistics implements StatisticsMBean {
+    private static final AtomicLong ids = new AtomicLong();
+
+    private final String pattern;
+    private final long id = ids.incrementAndGet();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder charsScanned = new LongAdder();
+    private final LongAccumulator peakNfaStates = new LongAccumulator(Math::max, 0);
+    private final LongAdder dfaCacheHits = new LongAdder();
+    private final LongAdder dfaCacheMisses = new LongAdder();
+    private final LongAdder dfaCacheFlushes = new LongAdder();
+    private final LongAdder compileNanos = new LongAdder();
+    private final LongAdder matchNanos = new LongAdder();
+    private ObjectName name;
+
+    /**
+     * @param pattern the source of the pattern, or null if it is unknown
+     */
+    public Statistics(String pattern) {
+        this.pattern = pattern;
+    }
+
+    /**
+     * Records one call to {@link Matcher#test}, {@link Matcher#match} or {@link Matcher#find}.
+     *
+     * @param chars the length of the input handed to the matcher
+     */
+    public void recordCall(int chars, long nanos) {
+        calls.increment();
+        charsScanned.add(chars);
+        matchNanos.add(nanos);
+    }
+
+    /**
+     * Records the most NFA threads alive at once during one run of the {@link PikeVm}.
+     */
+    public void recordNfaStates(int nfaStates) {
+        if (nfaStates > 0) {
+            peakNfaStates.accumulate(nfaStates);
+        }
+    }
+
+    /**
+     * Records the lazy DFA work of one call.
+     *
+     * @param nfaStates the most NFA states in one DFA state built during the call
+     */
+    public void recordDfa(long hits, long misses, long flushes, int nfaStates) {
+        if (nfaStates > 0) {
+            peakNfaStates.accumulate(nfaStates);
+        }
+        dfaCacheHits.add(hits);
+        if (misses > 0) {
+            dfaCacheMisses.add(misses);
+        }
+        if (flushes > 0) {
+            dfaCacheFlushes.add(flushes);
+        }
+    }
+
+    public void recordCompile(long nanos) {
+        compileNanos.add(nanos);
+    }
+
+    @Override
+    public String getPattern() {
+        return pattern;
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getCharsScanned() {
+        return charsScanned.sum();
+    }
+
+    @Override
+    public int getPeakNfaStates() {
+        return (int) peakNfaStates.get();
+    }
+
+    @Override
+    public long getDfaCacheHits() {
+        return dfaCacheHits.sum();
+    }
+
+    @Override
+    public long getDfaCacheMisses() {
+        return dfaCacheMisses.sum();
+    }
+
+    @Override
+    public long getDfaCacheFlushes() {
+        return dfaCacheFlushes.sum();
+    }
+
+    @Override
+    public long getCompileNanos() {
+        return compileNanos.sum();
+    }
+
+    @Override
+    public long getMatchNanos() {
+        return matchNanos.sum();
+    }
+
+    /**
+     * Clears the match counters. The compile time is kept.
+     */
+    @Override
+    public void reset() {
+        calls.reset();
+        charsScanned.reset();
+        peakNfaStates.reset();
+        dfaCacheHits.reset();
+        dfaCacheMisses.reset();
+        dfaCacheFlushes.reset();
+        matchNanos.reset();
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Registers these statistics with the platform MBean server, under a name unique to this pattern.
+     *
+     * @return the name of the MBean
+     */
+    public synchronized ObjectName register() throws JMException {
+        if (name == null) {
+            ObjectName name = new ObjectName("regex:type=Statistics,id=" + id
+                    + (pattern == null ? "" : ",pattern=" + ObjectName.quote(pattern)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            this.name = name;
+        }
+        return name;
+    }
+
+    public synchronized void unregister() throws JMException {
+        if (name != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            name = null;
+        }
+    }
+
+    /**
+     * The counters at one point in time. Counters updated concurrently with the snapshot may be included partially.
+     */
+    public static class Snapshot {
+        private final String pattern;
+        private final long calls;
+        private final long charsScanned;
+        private final int peakNfaStates;
+        private final long dfaCacheHits;
+        private final long dfaCacheMisses;
+        private final long dfaCacheFlushes;
+        private final long compileNanos;
+        private final long matchNanos;
+
+        private Snapshot(Statistics statistics) {
+            pattern = statistics.getPattern();
+            calls = statistics.getCalls();
+            charsScanned = statistics.getCharsScanned();
+            peakNfaStates = statistics.getPeakNfaStates();
+            dfaCacheHits = statistics.getDfaCacheHits();
+            dfaCacheMisses = statistics.getDfaCacheMisses();
+            dfaCacheFlushes = statistics.getDfaCacheFlushes();
+            compileNanos = statistics.getCompileNanos();
+            matchNanos = statistics.getMatchNanos();
+        }
+
+        public String getPattern() {
+            return pattern;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getCharsScanned() {
+            return charsScanned;
+        }
+
+        public int getPeakNfaStates() {
+            return peakNfaStates;
+        }
+
+        public long getDfaCacheHits() {
+            return dfaCacheHits;
+        }
+
+        public long getDfaCacheMisses() {
+            return dfaCacheMisses;
+        }
+
+        public long getDfaCacheFlushes() {
+            return dfaCacheFlushes;
+        }
+
+        public long getCompileNanos() {
+            return compileNanos;
+        }
+
+        public long getMatchNanos() {
+            return matchNanos;
+        }
+
+        @Override
+        public String toString() {
+            return pattern + ": " + calls + " calls, " + charsScanned + " chars, " + peakNfaStates
+                    + " peak NFA states, " + dfaCacheHits + " DFA hits, " + dfaCacheMisses + " misses, " + dfaCacheFlushes + " flushes, "
+                    + compileNanos + " ns compiling, " + matchNanos + " ns matching";
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * Management interface of {@link Statistics}, for monitoring the patterns of a running application over JMX.
+ */
+public interface StatisticsMBean {
+    String getPattern();
+
+    long getCalls();
+
+    long getCharsScanned();
+
+    /**
+     * @return the most NFA states active at once, as threads of the Pike VM or in a state built by the lazy DFA
+     */
+    int getPeakNfaStates();
+
+    long getDfaCacheHits();
+
+    long getDfaCacheMisses();
+
+    long getDfaCacheFlushes();
+
+    long getCompileNanos();
+
+    long getMatchNanos();
+
+    void reset();
+}
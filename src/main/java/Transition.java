@@ -1,17 +1,34 @@
-import java.util.function.Predicate;
-
 public class Transition {
-    public static final Predicate<Character> EMPTY_TRANSITION = (c) -> true;
+    public static final CharMatcher EMPTY_TRANSITION = (c) -> true;
 
-    private Predicate<Character> matcher;
+    private CharMatcher matcher;
     private Node start;
     private Node destination;
+    private int slot = -1;
 
-    public Transition(Predicate<Character> matcher, Node destination) {
+    public Transition(CharMatcher matcher, Node destination) {
         this.matcher = matcher;
         this.destination = destination;
     }
 
+    /**
+     * Creates an empty transition which records the current position in the given capture slot.
+     */
+    public static Transition save(int slot, Node destination) {
+        Transition transition = new Transition(EMPTY_TRANSITION, destination);
+        transition.slot = slot;
+        return transition;
+    }
+
+    /**
+     * @return a transition with the same matcher and slot leading to {@code destination}
+     */
+    public Transition copy(Node destination) {
+        Transition copy = new Transition(matcher, destination);
+        copy.slot = slot;
+        return copy;
+    }
+
     public Node getStart() {
         return start;
     }
@@ -28,13 +45,22 @@ public class Transition {
         return destination;
     }
 
-    public boolean matches(Character character) {
-        if (character == null) {
-            return matcher == EMPTY_TRANSITION;
-        }
-        if (matcher == EMPTY_TRANSITION) {
-            return character == null;
-        }
-        return matcher.test(character);
+    public CharMatcher getMatcher() {
+        return matcher;
+    }
+
+    /**
+     * @return the capture slot written by this transition, or -1
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    public boolean isEmpty() {
+        return matcher == EMPTY_TRANSITION;
+    }
+
+    public boolean matches(char character) {
+        return !isEmpty() && matcher.matches(character);
     }
 }
@@ -0,0 +1,206 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rewrites a {@link Program} over chars into an equivalent program over the bytes of the UTF-8 encoded input, so byte
+ * inputs can be matched without decoding. Every consuming instruction is replaced by a trie of byte ranges which
+ * accepts exactly the UTF-8 encodings of its characters, all other instructions are kept as they are. Instructions
+ * accepting a single byte range are rewritten in place, so ASCII patterns keep their layout.
+ * <p>
+ * Surrogate chars have no UTF-8 encoding and are dropped. A class containing all surrogates, as any negated class
+ * does, accepts the supplementary code points instead, so {@code .} consumes one code point. Invalid UTF-8 never
+ * matches.
+ */
+public class Utf8Lowering {
+    private static final int[] MAX_CODE_POINT = {0x7f, 0x7ff, 0xffff, 0x10ffff};
+
+    private int[] ops;
+    private int[] args;
+    private int[] args2;
+    private int[] next;
+    private int size;
+
+    public Program lower(Program program) {
+        ops = new int[2 * program.size()];
+        args = new int[ops.length];
+        args2 = new int[ops.length];
+        next = new int[ops.length];
+        size = program.size();
+
+        for (int pc = 0; pc < program.size(); pc++) {
+            ops[pc] = program.op(pc);
+            args[pc] = program.arg(pc);
+            args2[pc] = program.arg2(pc);
+            next[pc] = program.next(pc);
+
+            if (program.isConsuming(pc)) {
+                lowerConsuming(pc, trie(program.toCharClass(pc)));
+            }
+        }
+
+        return new Program(Arrays.copyOf(ops, size), Arrays.copyOf(args, size), Arrays.copyOf(args2, size),
+                Arrays.copyOf(next, size), new CharMatcher[0], program.getStart(), program.getSlotCount());
+    }
+
+    private void lowerConsuming(int pc, TrieNode root) {
+        if (root.children.isEmpty()) {
+            ops[pc] = Program.FAIL;
+        } else if (root.children.size() == 1 && root.children.get(0).isLeaf()) {
+            setRange(pc, root.children.get(0), next[pc]);
+        } else {
+            int entry = emit(root, next[pc]);
+            ops[pc] = Program.JMP;
+            next[pc] = entry;
+        }
+    }
+
+    /**
+     * Appends the alternatives of the trie node, laid out like {@link Lowering} lays out a node.
+     *
+     * @return the entry of the node
+     */
+    private int emit(TrieNode node, int target) {
+        int alternatives = node.children.size();
+        int entry = allocate(2 * alternatives - 1);
+        int first = entry + alternatives - 1;
+
+        for (int i = 0; i < alternatives - 1; i++) {
+            ops[entry + i] = Program.SPLIT;
+            next[entry + i] = first + i;
+            args[entry + i] = i < alternatives - 2 ? entry + i + 1 : first + alternatives - 1;
+        }
+        for (int i = 0; i < alternatives; i++) {
+            TrieNode child = node.children.get(i);
+            int childEntry = child.isLeaf() ? target : emit(child, target);
+            setRange(first + i, child, childEntry);
+        }
+        return entry;
+    }
+
+    private void setRange(int pc, TrieNode node, int target) {
+        ops[pc] = node.from == node.to ? Program.CHAR : Program.RANGE;
+        args[pc] = node.from;
+        args2[pc] = node.to;
+        next[pc] = target;
+    }
+
+    private int allocate(int count) {
+        if (size + count > ops.length) {
+            int length = Math.max(2 * ops.length, size + count);
+            ops = Arrays.copyOf(ops, length);
+            args = Arrays.copyOf(args, length);
+            args2 = Arrays.copyOf(args2, length);
+            next = Arrays.copyOf(next, length);
+        }
+        size += count;
+        return size - count;
+    }
+
+    /**
+     * @return the trie of the byte sequences encoding the characters of the class
+     */
+    private static TrieNode trie(CharClass charClass) {
+        TrieNode root = new TrieNode(-1, -1);
+        List<int[]> sequences = new ArrayList<>();
+        boolean allSurrogates = true;
+
+        for (int i = 0; i < charClass.rangeCount(); i++) {
+            int from = charClass.from(i);
+            int to = charClass.to(i);
+            if (from < Character.MIN_SURROGATE) {
+                split(from, Math.min(to, Character.MIN_SURROGATE - 1), sequences);
+            }
+            if (to > Character.MAX_SURROGATE) {
+                split(Math.max(from, Character.MAX_SURROGATE + 1), to, sequences);
+            }
+            if (from <= Character.MAX_SURROGATE && to >= Character.MIN_SURROGATE
+                    && (from > Character.MIN_SURROGATE || to < Character.MAX_SURROGATE)) {
+                allSurrogates = false;
+            }
+        }
+        if (allSurrogates && charClass.matches(Character.MIN_SURROGATE)) {
+            split(Character.MIN_SUPPLEMENTARY_CODE_POINT, Character.MAX_CODE_POINT, sequences);
+        }
+
+        for (int[] sequence : sequences) {
+            root.insert(sequence);
+        }
+        return root;
+    }
+
+    /**
+     * Splits the code points between {@code from} and {@code to} into ranges whose encodings differ only in a byte
+     * range per position, and adds them as sequences of {@code from, to} byte pairs in ascending order.
+     */
+    private static void split(int from, int to, List<int[]> sequences) {
+        for (int max : MAX_CODE_POINT) {
+            if (from <= max && to > max) {
+                split(from, max, sequences);
+                split(max + 1, to, sequences);
+                return;
+            }
+        }
+
+        if (to <= MAX_CODE_POINT[0]) {
+            sequences.add(new int[]{from, to});
+            return;
+        }
+
+        for (int i = 1; i < MAX_CODE_POINT.length; i++) {
+            int mask = (1 << (6 * i)) - 1;
+            if ((from & ~mask) != (to & ~mask)) {
+                if ((from & mask) != 0) {
+                    split(from, from | mask, sequences);
+                    split((from | mask) + 1, to, sequences);
+                    return;
+                }
+                if ((to & mask) != mask) {
+                    split(from, (to & ~mask) - 1, sequences);
+                    split(to & ~mask, to, sequences);
+                    return;
+                }
+            }
+        }
+
+        byte[] start = new String(Character.toChars(from)).getBytes(StandardCharsets.UTF_8);
+        byte[] end = new String(Character.toChars(to)).getBytes(StandardCharsets.UTF_8);
+        int[] sequence = new int[2 * start.length];
+        for (int i = 0; i < start.length; i++) {
+            sequence[2 * i] = start[i] & 0xff;
+            sequence[2 * i + 1] = end[i] & 0xff;
+        }
+        sequences.add(sequence);
+    }
+
+    private static class TrieNode {
+        private final int from;
+        private final int to;
+        private final List<TrieNode> children = new ArrayList<>();
+
+        TrieNode(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        boolean isLeaf() {
+            return children.isEmpty();
+        }
+
+        /**
+         * Sequences arrive in ascending order, so a shared prefix can only continue the last child.
+         */
+        void insert(int[] sequence) {
+            TrieNode node = this;
+            for (int i = 0; i < sequence.length; i += 2) {
+                TrieNode last = node.children.isEmpty() ? null : node.children.get(node.children.size() - 1);
+                if (last == null || last.from != sequence[i] || last.to != sequence[i + 1] || i == sequence.length - 2) {
+                    last = new TrieNode(sequence[i], sequence[i + 1]);
+                    node.children.add(last);
+                }
+                node = last;
+            }
+        }
+    }
+}
@@ -1,5 +1,34 @@
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StreamCorruptedException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import static org.junit.Assert.*;
 
 public class BasicTests {
@@ -195,18 +224,120 @@ public class BasicTests {
     }
 
     @Test
-    public void prepare() {
-        assertEquals("abc", new Optimizer().prepare("abc"));
-        assertEquals("ab*c", new Optimizer().prepare("ab*c"));
-        assertEquals("(abc)", new Optimizer().prepare("(abc)"));
-        assertEquals("(abc)+|(def)*", new Optimizer().prepare("(abc)+|(def)*"));
-        assertEquals("aaa?", new Optimizer().prepare("a{2,3}"));
-        assertEquals("aaa*", new Optimizer().prepare("a{2,}"));
-        assertEquals("a?a?a?", new Optimizer().prepare("a{0,3}"));
-        assertEquals("(dog)?(dog)?(dog)?", new Optimizer().prepare("(dog){0,3}"));
-        assertEquals("(dog)(dog)?(dog)?", new Optimizer().prepare("(dog){1,3}"));
-        assertEquals("(dog)(dog)*", new Optimizer().prepare("(dog){1,}"));
-        assertEquals("((1)\\.)((1)\\.)((1)\\.)", new Optimizer().prepare("((1)\\.){3}"));
+    public void nestedRepetitionSize() {
+        assertEquals(1001, Pattern.compile("a{1000}").getProgram().size());
+        assertTrue(Pattern.compile("(?:a{10}){100}").test("a".repeat(1000)));
+        assertTrue(new Compiler().compile("(?:[a-z]{20}|x{500}){300}").test("abcdefghijklmnopqrst".repeat(300)));
+
+        Options small = new Options();
+        small.setMaxNfaSize(1000);
+        assertTrue(new Compiler(small).compile("(?:a{10}){100}").test("a".repeat(1000)));
+
+        String[] regexes = {"(?:a{10}){101}", "(a{1000}){1000}", "((a{1000}){1000}){1000}"};
+        for (String regex : regexes) {
+            try {
+                new Compiler(small).compile(regex);
+                fail(regex);
+            } catch (CompileException e) {
+                assertEquals("Regex expands to more than 1000 states", e.getMessage());
+            }
+        }
+        try {
+            new Compiler().compile("((a{1000}){1000}){1000}");
+            fail();
+        } catch (CompileException e) {
+            assertEquals("Regex expands to more than " + Compiler.DEFAULT_MAX_NFA_SIZE + " states", e.getMessage());
+        }
+    }
+
+    @Test
+    public void parse() {
+        assertEquals("abc", new Parser().parse("abc").toString());
+        assertEquals("ab*c", new Parser().parse("ab*c").toString());
+        assertEquals("(abc)", new Parser().parse("(abc)").toString());
+        assertEquals("(abc)+|(def)*", new Parser().parse("(abc)+|(def)*").toString());
+        assertEquals("a{2,3}", new Parser().parse("a{2,3}").toString());
+        assertEquals("(dog)+", new Parser().parse("(dog){1,}").toString());
+        assertEquals("((1)\\.){3}", new Parser().parse("((1)\\.){3}").toString());
+        assertEquals("(?:ab)*c", new Parser().parse("(?:ab)*c").toString());
+        assertEquals("a|(?:)", new Parser().parse("a|").toString());
+
+        assertTrue(Pattern.compile("\\\\").test("\\"));
+        assertTrue(Pattern.compile("a\\\\b").test("a\\b"));
+        assertFalse(Pattern.compile("a\\\\b").test("ab"));
+        assertTrue(Pattern.compile("[\\\\x]+").test("x\\"));
+        try {
+            Pattern.compile("a\\");
+            fail();
+        } catch (CompileException e) {
+            assertEquals("Trailing backslash at position 1", e.getMessage());
+        }
+    }
+
+    @Test
+    public void simplify() {
+        assertEquals("[a-c]", simplified("a|b|c"));
+        assertEquals("ab[cd]", simplified("abc|abd"));
+        assertEquals("a(?:bc|d)", simplified("abc|ad"));
+        assertEquals("ab?", simplified("a|ab"));
+        assertEquals("a*", simplified("(?:a*)*"));
+        assertEquals("a*", simplified("(?:a+)?"));
+        assertEquals("a{2,}", simplified("(?:a+){2,3}"));
+        assertEquals("b", simplified("(?:)b(?:a){0}"));
+        assertEquals("(a)|[b-d]|e(b)", simplified("(a)|b|c|d|e(b)"));
+        assertEquals("(a*)*", simplified("(a*)*"));
+        assertEquals("()", simplified("()"));
+
+        assertEquals(Pattern.compile("[abc]").getProgram().size(), Pattern.compile("a|b|c").getProgram().size());
+        assertEquals(Pattern.compile("a*").getProgram().size(), Pattern.compile("(?:a*)*").getProgram().size());
+        assertTrue(Pattern.compile("abc|abd").getProgram().size() < Pattern.compile("abc|xyd").getProgram().size());
+
+        Matcher m = Pattern.compile("");
+        assertTrue(m.test(""));
+        assertFalse(m.test("a"));
+        m = Pattern.compile("(?:cat|car|cow)s?");
+        assertTrue(m.test("car"));
+        assertTrue(m.test("cows"));
+        assertFalse(m.test("ca"));
+        Match match = Pattern.compile("x(a|b)|x(b)").match("xb");
+        assertEquals("b", match.group("xb", 1));
+        assertNull(match.group("xb", 2));
+    }
+
+    @Test
+    public void nfaReduction() {
+        Compiler compiler = new Compiler();
+        Program program = compiler.compile("(?:a|b)*abb").getProgram();
+        NfaReduction reduction = compiler.getReduction();
+        assertEquals(6, reduction.getStatesBefore());
+        assertEquals(4, reduction.getStatesAfter());
+        assertTrue(reduction.getTransitionsAfter() < reduction.getTransitionsBefore());
+        for (int pc = 0; pc < program.size(); pc++) {
+            assertTrue(program.op(pc) != Program.JMP);
+        }
+
+        compiler.compile(".*a.*|.*b.*");
+        assertEquals(2, compiler.getReduction().getStatesAfter());
+
+        int[] peaks = new int[2];
+        for (int i = 0; i < 2; i++) {
+            Options options = new Options();
+            options.setNfaReduction(i == 1);
+            options.setStatistics(true);
+            options.setDfaCacheSize(0);
+            Matcher m = new Compiler(options).compile("\\d{3}-\\d{4}|\\(\\d{3}\\) \\d{3}-\\d{4}");
+            assertEquals(new Match(4, 12), m.find("tel 555-1234"));
+            assertEquals(new Match(0, 14), m.find("(555) 123-4567"));
+            peaks[i] = m.getStatistics().getPeakNfaStates();
+        }
+        assertTrue(peaks[1] < peaks[0]);
+
+        Match match = Pattern.compile("(?:(b?)+)?").match("");
+        assertEquals(0, match.getStart(1));
+    }
+
+    private static String simplified(String regex) {
+        return new Simplifier(false).simplify(new Parser().parse(regex)).toString();
     }
 
     @Test
@@ -262,4 +393,754 @@ public class BasicTests {
         assertFalse(m.test("abc"));
         assertFalse(m.test("Bde"));
     }
+
+    @Test
+    public void lazyDfaCache() {
+        String regex = "(a|b)*a(a|b)(a|b)(a|b)(a|b)";
+        Matcher unbounded = Pattern.compile(regex);
+
+        Options tiny = new Options();
+        tiny.setDfaCacheSize(2048);
+        Matcher bounded = Pattern.compile(regex, tiny);
+
+        Options nfaOnly = new Options();
+        nfaOnly.setDfaCacheSize(0);
+        Matcher nfa = Pattern.compile(regex, nfaOnly);
+
+        String[] inputs = {"", "a", "abbbb", "aabab", "bbbbbbbbabbba", "ababababbbaabbb", "abababababababababaaaab"};
+        for (String input : inputs) {
+            boolean expected = java.util.regex.Pattern.matches(regex, input);
+            assertEquals(input, expected, unbounded.test(input));
+            assertEquals(input, expected, bounded.test(input));
+            assertEquals(input, expected, nfa.test(input));
+        }
+
+        Program program = new Compiler().compile("(?:[\u4e00-\u9fff]|[\u3040-\u30ff]b)*c").getProgram();
+        LazyDfa dfa = new LazyDfa(program, 1 << 20);
+        dfa.test("c");
+        long ascii = dfa.usedMemory();
+        dfa.test("\u4e00c");
+        assertTrue(dfa.usedMemory() > ascii);
+
+        dfa = new LazyDfa(program, 2048);
+        PikeVm vm = new PikeVm(program);
+        Random random = new Random(3);
+        for (int i = 0; i < 50; i++) {
+            StringBuilder input = new StringBuilder();
+            for (int j = 0; j < 2000; j++) {
+                if (random.nextInt(8) > 0) {
+                    input.append((char) (0x4e00 + random.nextInt(0x5200)));
+                } else {
+                    input.append("\u3042b");
+                }
+            }
+            input.append(i % 2 == 0 ? "c" : "\u3042c");
+            int result = dfa.test(input);
+            assertTrue(dfa.usedMemory() <= 2048);
+            assertEquals(i % 2 == 0 ? LazyDfa.MATCH : LazyDfa.NO_MATCH, result);
+            assertEquals(result == LazyDfa.MATCH, vm.test(input));
+        }
+    }
+
+    @Test
+    public void pikeVm() {
+        Options nfaOnly = new Options();
+        nfaOnly.setDfaCacheSize(0);
+
+        String[] regexes = {"a*|b*", "(cat|(dog|doggy))*|bird", "a?a?a*", "[b-m]{2,3}", "[^abc]+", "\\d+\\.\\w*", "(a|b)*abb"};
+        String[] inputs = {"", "a", "bb", "ab", "bird", "catdoggydog", "aaaa", "bhi", "Bde", "xyz", "12.ab", "12.", "babb", "abab"};
+        for (String regex : regexes) {
+            Matcher m = Pattern.compile(regex, nfaOnly);
+            for (String input : inputs) {
+                assertEquals(regex + " / " + input, java.util.regex.Pattern.matches(regex, input), m.test(input));
+            }
+        }
+
+        assertEquals(">0: char 'a' -> 1\n 1: match 0\n", Pattern.compile("a").getProgram().toString());
+    }
+
+    @Test
+    public void sparseSet() {
+        SparseSet set = new SparseSet(8);
+        assertTrue(set.isEmpty());
+        assertTrue(set.add(5));
+        assertTrue(set.add(2));
+        assertFalse(set.add(5));
+        assertEquals(2, set.size());
+        assertEquals(5, set.get(0));
+        assertEquals(2, set.get(1));
+        assertTrue(set.contains(2));
+        assertFalse(set.contains(3));
+
+        set.clear();
+        assertFalse(set.contains(5));
+        assertTrue(set.add(3));
+        assertEquals(3, set.get(0));
+    }
+
+    @Test
+    public void nestedQuantifiers() {
+        Matcher m = Pattern.compile("((a*)*)*");
+        assertTrue(m.test(""));
+        assertTrue(m.test("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa"));
+        assertFalse(m.test("aaaab"));
+
+        m = Pattern.compile("(((a?)*)*b*)*c");
+        assertTrue(m.test("c"));
+        assertTrue(m.test("abababaabbc"));
+        assertFalse(m.test("abababaabb"));
+
+        int[] closure = m.getProgram().closure(m.getProgram().getStart());
+        assertEquals(closure.length, Arrays.stream(closure).distinct().count());
+    }
+
+    @Test
+    public void multipleRanges() {
+        Matcher m = Pattern.compile("[a-zA-Z0-9_.-]+");
+        assertTrue(m.test("Some_file-1.txt"));
+        assertFalse(m.test("a b"));
+
+        m = Pattern.compile("[^a-zA-Z]+");
+        assertTrue(m.test("123 _!"));
+        assertFalse(m.test("12a"));
+    }
+
+    @Test
+    public void charClass() {
+        CharClass lower = CharClass.range('a', 'z');
+        CharClass digits = CharClass.range('0', '9');
+        CharClass union = lower.union(digits).union(CharClass.of('_')).union(CharClass.range('b', 'c'));
+        assertEquals("[0-9_a-z]", union.toString());
+        assertTrue(union.matches('_'));
+        assertFalse(union.matches('A'));
+
+        CharClass negated = union.negate();
+        assertEquals(4, negated.rangeCount());
+        assertTrue(negated.matches('A'));
+        assertTrue(negated.matches('\u00e4'));
+        assertFalse(negated.matches('5'));
+        assertEquals(union, negated.negate());
+        assertEquals(CharClass.ANY, CharClass.NONE.negate());
+
+        CharClass digit = MetaCharacters.getHandler('d');
+        assertTrue(digit.matches('7'));
+        assertTrue(digit.matches('\u0663'));
+        assertFalse(digit.matches('x'));
+        assertEquals(CharClass.of('a').union(CharClass.of('b')), CharClass.range('a', 'b'));
+    }
+
+    @Test
+    public void find() {
+        Matcher m = Pattern.compile("ERROR \\d+");
+        assertEquals(new Match(9, 19), m.find("12:00:01 ERROR 4711 disk full"));
+        assertNull(m.find("12:00:01 ERROR disk full"));
+        assertNull(m.find("12:00:01 ERROR 4711", 10));
+        assertEquals("ERROR ", m.getPrefilter().getPrefix());
+
+        m = Pattern.compile("abcd|bc");
+        assertEquals(new Match(0, 4), m.find("abcd"));
+        assertEquals(new Match(1, 3), m.find("abce"));
+
+        m = Pattern.compile("a*");
+        assertEquals(new Match(0, 0), m.find("bbb"));
+        assertEquals(new Match(1, 3), m.find("baab", 1));
+        assertEquals(new Match(3, 3), m.find("bbb", 3));
+        assertNull(m.find("bbb", 4));
+
+        String[] regexes = {"a|ab", "(cat|dog)s?", "\\d+\\.\\d+", "[a-c]+x", "x(ab)*y", "\\w+@\\w+\\.com"};
+        String[] inputs = {"", "ab", "dogs and cats", "pi is 3.14 or 2.71", "aabbccx abx", "xababy xy", "mail: a@b.com, c@d.com"};
+        for (String regex : regexes) {
+            Matcher matcher = Pattern.compile(regex);
+            for (String input : inputs) {
+                assertEquals(regex + " / " + input, leftmostLongest(regex, input, 0), span(matcher.find(input)));
+                assertEquals(regex + " / " + input, leftmostLongest(regex, input, 2), span(matcher.find(new StringBuilder(input), 2)));
+            }
+        }
+    }
+
+    @Test
+    public void findAll() {
+        Matcher m = Pattern.compile("\\d+");
+        List<Match> matches = new ArrayList<>();
+        m.findAll("a1 b22 c333").forEachRemaining(matches::add);
+        assertEquals(Arrays.asList(new Match(1, 2), new Match(4, 6), new Match(8, 11)), matches);
+
+        matches.clear();
+        Pattern.compile("x*").findAll("axb").forEachRemaining(matches::add);
+        assertEquals(Arrays.asList(new Match(0, 0), new Match(1, 2), new Match(2, 2), new Match(3, 3)), matches);
+    }
+
+    @Test
+    public void prefilter() {
+        assertEquals("", Pattern.compile("a*b").getPrefilter().getPrefix());
+        assertEquals("b", Pattern.compile("a*b").getPrefilter().getRequired());
+        assertEquals("timeout", Pattern.compile("timeout").getPrefilter().getPrefix());
+        assertEquals("", Pattern.compile("cat|dog").getPrefilter().getRequired());
+        assertEquals(" user=", Pattern.compile("\\d+ user=\\w+").getPrefilter().getRequired());
+        assertEquals("ab", Pattern.compile("x?(ab)+").getPrefilter().getRequired());
+
+        LiteralSearcher searcher = new LiteralSearcher("needle");
+        StringBuilder haystack = new StringBuilder("hay needle hay needle");
+        assertEquals(4, searcher.indexOf(haystack, 0));
+        assertEquals(15, searcher.indexOf(haystack, 5));
+        assertEquals(-1, searcher.indexOf(haystack, 16));
+    }
+
+    @Test
+    public void staticAnalysis() {
+        Prefilter date = Pattern.compile("\\d{4}-\\d{2}-\\d{2}").getPrefilter();
+        assertEquals(10, date.getMinLength());
+        assertEquals(10, date.getMaxLength());
+        assertTrue(date.getFirstChars().matches('7'));
+        assertFalse(date.getFirstChars().matches('-'));
+        assertFalse(date.mayMatchWhole("2024-01-0"));
+        assertFalse(date.mayMatchWhole("x024-01-02"));
+        assertFalse(date.mayMatchWhole("2024+01+02"));
+        assertTrue(date.mayMatchWhole("2024-01-02"));
+
+        Prefilter loop = Pattern.compile("x(ab)+y?").getPrefilter();
+        assertEquals(3, loop.getMinLength());
+        assertEquals(-1, loop.getMaxLength());
+        assertNull(Pattern.compile("a*b?").getPrefilter().getFirstChars());
+        assertEquals(0, Pattern.compile("a*b?").getPrefilter().getMinLength());
+
+        Matcher m = Pattern.compile("[ab]c{2,3}");
+        assertEquals(new Match(5, 9), span(m.find("bcxx bccc")));
+        assertNull(m.find("ab", 0));
+        assertFalse(m.test("acccc"));
+    }
+
+    @Test
+    public void reverseSearch() {
+        Program reversed = new Reversal().reverse(new Compiler().compile("ab+c|d").getProgram());
+        PikeVm vm = new PikeVm(reversed);
+        assertTrue(vm.test("cbba"));
+        assertTrue(vm.test("d"));
+        assertFalse(vm.test("abbc"));
+
+        String[] regexes = {"abcd|bc", "ab.*d|bc", "[a-z]+@[a-z]+\\.com", "b?a*c", "(a|b)*abb"};
+        String input = "xabcd bc abxd a@b.com bbaaac ababb";
+        for (String regex : regexes) {
+            Matcher m = new Compiler().compile(regex);
+            for (int from = 0; from <= input.length(); from++) {
+                assertEquals(regex + " " + from, leftmostLongest(regex, input, from), span(m.find(input, from)));
+            }
+        }
+
+        Match match = new Compiler().compile("(\\w+)@(\\w+)").find("mail: bob@example ");
+        assertEquals("bob", match.group("mail: bob@example ", 1));
+        assertEquals(new Match(6, 17), span(match));
+    }
+
+    private Match span(Match match) {
+        return match == null ? null : new Match(match.getStart(), match.getEnd());
+    }
+
+    private Match leftmostLongest(String regex, String input, int from) {
+        java.util.regex.Matcher reference = java.util.regex.Pattern.compile(regex).matcher(input);
+        for (int start = from; start <= input.length(); start++) {
+            for (int end = input.length(); end >= start; end--) {
+                if (reference.region(start, end).matches()) {
+                    return new Match(start, end);
+                }
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void groups() {
+        Matcher m = Pattern.compile("(\\w+)@(\\w+)\\.com");
+        Match match = m.match("admin@domain.com");
+        assertEquals(2, match.groupCount());
+        assertEquals("admin", match.group("admin@domain.com", 1));
+        assertEquals("domain", match.group("admin@domain.com", 2));
+        assertNull(m.match("admin@domain.org"));
+
+        String log = "2024-01-02 ERROR 42 disk full";
+        match = Pattern.compile("ERROR (\\d+) (\\w+)").find(log);
+        assertEquals("ERROR 42 disk", match.group(log, 0));
+        assertEquals("42", match.group(log, 1));
+        assertEquals("disk", match.group(log, 2));
+
+        match = Pattern.compile("(a)|(b)").match("b");
+        assertNull(match.group("b", 1));
+        assertEquals(-1, match.getStart(1));
+        assertEquals("b", match.group("b", 2));
+
+        String[] regexes = {"(a*)(a*)", "(a|ab)(c|bcd)", "((a)|b)+", "(\\d{1,3}\\.){3}(\\d+)", "(x(y)?)*", "(dog){2}", "([a-c]+)(x?)"};
+        String[] inputs = {"", "aaa", "abcd", "abab", "10.0.0.1", "xyxx", "dogdog", "abcx", "abc"};
+        for (String regex : regexes) {
+            Matcher matcher = Pattern.compile(regex);
+            for (String input : inputs) {
+                java.util.regex.Matcher reference = java.util.regex.Pattern.compile(regex).matcher(input);
+                Match actual = matcher.match(input);
+                assertEquals(regex + " / " + input, reference.matches(), actual != null);
+                if (actual != null) {
+                    assertEquals(regex, reference.groupCount(), actual.groupCount());
+                    for (int group = 0; group <= reference.groupCount(); group++) {
+                        assertEquals(regex + " / " + input + " / " + group, reference.group(group), actual.group(input, group));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void regexSet() {
+        List<String> rules = Arrays.asList("ERROR \\d+", "WARN.*", "\\d+", "(GET|POST) /\\w*", "disk full", "x*");
+        String[] inputs = {"", "42", "WARN low memory", "ERROR 500 disk full", "GET /index", "nothing here", "xxx"};
+
+        Options tiny = new Options();
+        tiny.setDfaCacheSize(1024);
+        Options nfaOnly = new Options();
+        nfaOnly.setDfaCacheSize(0);
+
+        for (RegexSet set : new RegexSet[]{RegexSet.compile(rules), RegexSet.compile(rules, tiny), RegexSet.compile(rules, nfaOnly)}) {
+            assertEquals(rules.size(), set.size());
+            for (String input : inputs) {
+                BitSet matches = new BitSet();
+                BitSet found = new BitSet();
+                for (int i = 0; i < rules.size(); i++) {
+                    java.util.regex.Matcher reference = java.util.regex.Pattern.compile(rules.get(i)).matcher(input);
+                    matches.set(i, reference.matches());
+                    found.set(i, reference.find(0));
+                }
+                assertEquals(input, matches, set.matches(input));
+                assertEquals(input, found, set.search(input));
+                int first = set.searchFirst(input);
+                assertTrue(input, first >= 0 ? found.get(first) : found.isEmpty());
+            }
+        }
+
+        assertEquals(-1, RegexSet.compile(Arrays.asList("cat", "dog")).searchFirst("a bird"));
+        assertEquals(1, RegexSet.compile(Arrays.asList("cat", "dog")).searchFirst("hotdog"));
+    }
+
+    @Test
+    public void grep() throws Exception {
+        String log = "12:00 INFO start\n12:01 ERROR 42 disk full\n\n12:02 WARN slow\n12:03 ERROR 7\u00e4 net";
+        List<LineMatch> expected = Arrays.asList(
+                new LineMatch(2, 17, 41), new LineMatch(5, 59, 77));
+
+        Options options = new Options();
+        options.setBufferSize(5);
+        Grep grep = new Grep(Pattern.compile("ERROR \\d+"), options);
+
+        assertEquals(expected, grep.lines(new StringReader(log)).collect(Collectors.toList()));
+
+        byte[] bytes = log.getBytes(StandardCharsets.UTF_8);
+        ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(bytes));
+        assertEquals(expected, grep.lines(channel, StandardCharsets.UTF_8).collect(Collectors.toList()));
+
+        Path file = Files.createTempFile("grep", ".log");
+        try (FileChannel fileChannel = FileChannel.open(Files.write(file, bytes))) {
+            assertEquals(expected, grep.lines(fileChannel, 0, bytes.length, StandardCharsets.UTF_8)
+                    .collect(Collectors.toList()));
+        } finally {
+            Files.delete(file);
+        }
+
+        assertEquals(5, new Grep(Pattern.compile("x*")).lines(new StringReader(log)).count());
+        assertEquals(0, new Grep(Pattern.compile("FATAL")).lines(new StringReader(log)).count());
+
+        Options tiny = new Options();
+        tiny.setDfaCacheSize(1024);
+        assertEquals(1, new Grep(Pattern.compile("(a|b)*a(a|b)(a|b)(a|b)c"), tiny)
+                .lines(new StringReader("abababbbaabbbbbbabababaaabc\nabab")).count());
+    }
+
+    @Test
+    public void utf8() {
+        Options options = new Options();
+        options.setUtf8(true);
+        Charset utf8 = StandardCharsets.UTF_8;
+
+        Matcher word = Pattern.compile("\\w+ caf\u00e9", options);
+        assertTrue(word.test("gro\u00dfes caf\u00e9".getBytes(utf8)));
+        assertFalse(word.test("gro\u00dfes cafe".getBytes(utf8)));
+        assertTrue(word.test(ByteBuffer.wrap("\u4e2d caf\u00e9".getBytes(utf8))));
+
+        Matcher dot = Pattern.compile("a.b", options);
+        assertTrue(dot.test("a\u00e9b".getBytes(utf8)));
+        assertTrue(dot.test("a\u4e2db".getBytes(utf8)));
+        assertTrue(dot.test("a\ud83d\ude00b".getBytes(utf8)));
+        assertFalse(dot.test(new byte[]{'a', (byte) 0xc3, 'b'}));
+
+        Matcher range = Pattern.compile("[\u00e0-\u00ff]+", options);
+        byte[] input = "na\u00efve r\u00e9sum\u00e9".getBytes(utf8);
+        assertEquals(new Match(2, 4), span(range.find(input)));
+        assertEquals(new Match(8, 10), span(range.find(input, 4)));
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(input.length).put(input);
+        buffer.position(6);
+        assertEquals(new Match(2, 4), span(range.find(buffer)));
+        assertEquals(6, buffer.position());
+
+        try {
+            Pattern.compile("a").test(new byte[]{'a'});
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void countedRepetition() {
+        Matcher m = Pattern.compile("\\d{255}");
+        assertTrue(m.test(new String(new char[255]).replace('\0', '7')));
+        assertFalse(m.test(new String(new char[254]).replace('\0', '7')));
+
+        m = Pattern.compile("[a-z]{1,255}");
+        assertTrue(m.test("hello"));
+        assertFalse(m.test(""));
+        assertTrue(m.getProgram().size() < 4 * 255 + 10);
+
+        m = Pattern.compile("(a|b){2,4}c");
+        assertTrue(m.test("abc"));
+        assertTrue(m.test("abbac"));
+        assertFalse(m.test("ac"));
+        assertFalse(m.test("ababac"));
+
+        m = Pattern.compile("x{0}y{0,}z{12}");
+        assertTrue(m.test("zzzzzzzzzzzz"));
+        assertTrue(m.test("yyzzzzzzzzzzzz"));
+
+        Match match = Pattern.compile("((a)b?){2,3}").match("abaab");
+        assertEquals(new Match(3, 5), new Match(match.getStart(1), match.getEnd(1)));
+        assertEquals(new Match(3, 4), new Match(match.getStart(2), match.getEnd(2)));
+
+        for (String invalid : new String[]{"a{1001}", "a{3,2}", "{2}", "a{x}"}) {
+            try {
+                Pattern.compile(invalid);
+                fail(invalid);
+            } catch (CompileException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void concurrentMatching() throws Exception {
+        Options tiny = new Options();
+        tiny.setDfaCacheSize(2048);
+        String[] regexes = {"(a|b)*a(a|b)(a|b)(a|b)c", "\\d{1,3}(\\.\\d{1,3}){3}", "(cat|dog)s?"};
+        Matcher[] shared = {Pattern.compile(regexes[0], tiny), Pattern.compile(regexes[1]), Pattern.compile(regexes[2])};
+        String[] inputs = {"abababbbaabbbbbbabababaaabc", "ababab", "10.0.0.255", "10.0.0", "cats", "cow"};
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 64; t++) {
+                int seed = t;
+                results.add(executor.submit(() -> {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 2000; i++) {
+                        int pattern = random.nextInt(regexes.length);
+                        Matcher matcher = random.nextBoolean() ? shared[pattern] : Pattern.compile(regexes[pattern]);
+                        String input = inputs[random.nextInt(inputs.length)];
+                        if (matcher.test(input) != input.matches(regexes[pattern])) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertSame(Pattern.compile("(cat|dog)s?"), Pattern.compile("(cat|dog)s?"));
+        assertSame(shared[0], Pattern.compile(regexes[0], tiny));
+        assertTrue(shared[0] != Pattern.compile(regexes[0]));
+
+        PatternCache cache = new PatternCache(16);
+        for (int i = 0; i < 100; i++) {
+            cache.compile("a{" + i + "}");
+        }
+        assertTrue(cache.size() <= 16);
+
+        cache = new PatternCache(16, 16 * 2 * 4096);
+        assertEquals(4096, cache.compile("a+b").getDfaCacheSize());
+        assertEquals(2048, cache.compile("a+b", tiny).getDfaCacheSize());
+        assertTrue(cache.compile("a+b").test("aaab"));
+        assertEquals(PatternCache.DEFAULT_DFA_MEMORY / (2 * PatternCache.DEFAULT_CAPACITY),
+                Pattern.compile("a+b").getDfaCacheSize());
+    }
+
+    @Test
+    public void denseDfa() {
+        Options options = new Options();
+        options.setFullDfa(true);
+
+        Matcher m = Pattern.compile("(a|b)*abb", options);
+        assertEquals(5, m.getDenseDfa().stateCount());
+        assertTrue(m.test("abb"));
+        assertTrue(m.test("babaabb"));
+        assertFalse(m.test("abba"));
+        assertFalse(m.test(""));
+
+        m = Pattern.compile("(cat|dog)s?|\\d{2,3}", options);
+        for (String input : new String[]{"cat", "dogs", "cats", "42", "123", "1234", "do", "catss", ""}) {
+            assertEquals(input, input.matches("(cat|dog)s?|\\d{2,3}"), m.test(input));
+        }
+
+        options.setMaxDfaStates(100);
+        m = Pattern.compile("(a|b)*a(a|b){10}", options);
+        assertNull(m.getDenseDfa());
+        assertTrue(m.test("bbabbbbbbbbbb"));
+        assertFalse(m.test("bbbbbbbbbbbbb"));
+    }
+
+    @Test
+    public void bytecode() {
+        Options options = new Options();
+        options.setBytecodeThreshold(3);
+        String regex = "[a-z]+@[a-z]+\\.(com|org)|\u4e00+\\d{2}";
+
+        Matcher m = Pattern.compile(regex, options);
+        String[] inputs = {"me@example.com", "me@example.net", "@x.org", "\u4e00\u4e0012", "\u4e003", "", "a@b.org"};
+        for (String input : inputs) {
+            assertEquals(input, input.matches(regex), m.test(input));
+        }
+        assertNotNull(m.getGenerated());
+        for (String input : inputs) {
+            assertEquals(input, input.matches(regex), m.test(input));
+        }
+
+        assertNull(Pattern.compile(regex).getGenerated());
+
+        options.setMaxDfaStates(2);
+        m = Pattern.compile(regex, options);
+        for (String input : inputs) {
+            assertEquals(input, input.matches(regex), m.test(input));
+        }
+        assertNull(m.getGenerated());
+    }
+
+    @Test
+    public void literals() {
+        Matcher m = new Compiler().compile("timeout");
+        assertEquals(Set.of("timeout"), m.getLiterals().getLiterals());
+        assertTrue(m.test("timeout"));
+        assertFalse(m.test("timeouts"));
+        assertEquals(new Match(9, 16), m.find("read tcp timeout"));
+
+        m = new Compiler().compile("he|she|his|hers|gr[ae]y");
+        assertEquals(Set.of("he", "she", "his", "hers", "gray", "grey"), m.getLiterals().getLiterals());
+        assertTrue(m.test("grey"));
+        assertFalse(m.test("gry"));
+        assertEquals(new Match(1, 4), m.find("ushers"));
+        assertEquals(new Match(2, 6), m.find("ushers", 2));
+        assertEquals(new Match(0, 4), m.match("hers"));
+        assertNull(m.find("grr"));
+
+        Options options = new Options();
+        options.setUtf8(true);
+        m = new Compiler(options).compile("cat|dog|caf\u00e9");
+        assertTrue(m.test("dog".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(m.test("caf\u00e9".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(m.test("cafe".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(m.test("caf\u00e9s".getBytes(StandardCharsets.UTF_8)));
+
+        assertNull(new Compiler().compile("(cat|dog)").getLiterals());
+        assertNull(new Compiler().compile("cat|dogs*").getLiterals());
+        assertNull(new Compiler().compile("[a-z]").getLiterals());
+    }
+
+    @Test
+    public void parallel() {
+        Options options = new Options();
+        options.setParallelThreshold(1000);
+        Options sequential = new Options();
+        sequential.setParallelThreshold(0);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        Random random = new Random(21);
+        int matches = 0;
+        for (String regex : new String[]{"(a|b)*abb", "[abc]*", "(a|bc)*c?", "[ab]*a[ab]{3}"}) {
+            Matcher parallel = new Compiler(options).compile(regex);
+            Matcher reference = new Compiler(sequential).compile(regex);
+            Program program = reference.getProgram();
+            ParallelDfa chunked = new ParallelDfa(new DfaBuilder(program, DenseDfa.DEFAULT_MAX_STATES).build(), pool);
+            for (int i = 0; i < 20; i++) {
+                StringBuilder input = new StringBuilder();
+                int length = 1000 + random.nextInt(60_000);
+                for (int j = 0; j < length; j++) {
+                    input.append("abbc".charAt(random.nextInt(i % 2 == 0 ? 2 : 4)));
+                }
+                input.append(i % 4 < 2 ? "aabb" : "abab");
+                String s = input.toString();
+                boolean expected = reference.test(s);
+                assertEquals(regex, expected, parallel.test(s));
+                assertEquals(regex, expected, chunked.test(s));
+                matches += expected ? 1 : 0;
+            }
+        }
+        assertTrue(matches > 10);
+        pool.shutdown();
+    }
+
+    @Test
+    public void byteSearch() {
+        byte[] bytes = "0123456789abcdef\u00ff\u0080x".getBytes(StandardCharsets.ISO_8859_1);
+        assertEquals(10, ByteSearch.indexOf(bytes, 0, bytes.length, (byte) 'a'));
+        assertEquals(-1, ByteSearch.indexOf(bytes, 0, 10, (byte) 'a'));
+        assertEquals(16, ByteSearch.indexOf(bytes, 3, bytes.length, (byte) 0xff));
+        assertEquals(17, ByteSearch.indexOfAny(bytes, 0, bytes.length, new byte[]{(byte) 0x80, 'x'}));
+        assertEquals(1, ByteSearch.indexOfAny(bytes, 0, bytes.length, new byte[]{'f', '1', (byte) 0x80}));
+        assertEquals(-1, ByteSearch.indexOfAny(bytes, 2, bytes.length, new byte[]{'0', '1', 'y'}));
+
+        ByteSequence sequence = ByteSequence.of(bytes, 2, 16);
+        assertEquals(8, sequence.indexOf((byte) 'a', 0));
+        assertEquals(-1, sequence.indexOf((byte) 'x', 0));
+        assertEquals(14, new LiteralSearcher("\u00ff\u0080").indexOf(sequence, 3));
+        assertEquals(-1, new LiteralSearcher("ef\u00ffx").indexOf(sequence, 0));
+
+        Options options = new Options();
+        options.setUtf8(true);
+        Matcher m = new Compiler(options).compile("#[a-z]+-[0-9]+");
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            log.append("INFO served in ").append(i).append("ms\n");
+        }
+        log.append("WARN #ticket-42 open\n");
+        byte[] utf8 = log.toString().getBytes(StandardCharsets.UTF_8);
+        assertEquals(new Match(log.indexOf("#"), log.indexOf(" open")), span(m.find(utf8)));
+        assertEquals(new Match(log.indexOf("#"), log.indexOf(" open")), span(m.find(log)));
+        assertNull(m.find(log, log.indexOf("#") + 1));
+    }
+
+    @Test
+    public void batch() {
+        List<String> inputs = new ArrayList<>();
+        Random random = new Random(22);
+        for (int i = 0; i < 3000; i++) {
+            inputs.add(Integer.toString(random.nextInt(1000), 2 + random.nextInt(14)) + (i % 3 == 0 ? ".log" : ".txt1"));
+        }
+        String regex = "[0-9a-e][0-9a-e]*\\.(log|txt)";
+        Matcher m = Pattern.compile(regex);
+        BitSet expected = new BitSet();
+        for (int i = 0; i < inputs.size(); i++) {
+            if (inputs.get(i).matches(regex)) {
+                expected.set(i);
+            }
+        }
+        assertEquals(1000, expected.cardinality());
+
+        boolean[] results = m.testAll(inputs);
+        for (int i = 0; i < inputs.size(); i++) {
+            assertEquals(inputs.get(i), expected.get(i), results[i]);
+        }
+        assertEquals(expected, m.matchingIndices(inputs));
+        assertEquals(expected, m.matchingIndices(new LinkedList<>(inputs)));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            assertEquals(expected, m.matchingIndices(inputs, executor));
+            assertEquals(new BitSet(), Pattern.compile("cat|dog").matchingIndices(inputs, executor));
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(expected.cardinality(), inputs.stream().filter(m.asMatchPredicate()).count());
+        assertEquals(0, m.testAll(List.of()).length);
+    }
+
+    @Test
+    public void statistics() throws Exception {
+        assertNull(Pattern.compile("a+b").getStatistics());
+
+        Options options = new Options();
+        options.setStatistics(true);
+        Matcher m = new Compiler(options).compile("(a|b)*abb");
+        Statistics statistics = m.getStatistics();
+        assertEquals("(a|b)*abb", statistics.getPattern());
+        assertTrue(statistics.getCompileNanos() > 0);
+
+        assertTrue(m.test("ababb"));
+        assertTrue(m.test("aabb"));
+        assertFalse(m.test("abab"));
+        assertEquals(new Match(1, 4), span(m.find("cabbc")));
+        assertNotNull(m.match("abb"));
+
+        Statistics.Snapshot snapshot = statistics.snapshot();
+        assertEquals(5, snapshot.getCalls());
+        assertEquals(5 + 4 + 4 + 5 + 3, snapshot.getCharsScanned());
+        assertTrue(snapshot.getDfaCacheMisses() > 0);
+        assertTrue(snapshot.getDfaCacheHits() > 0);
+        assertTrue(snapshot.getPeakNfaStates() > 0);
+        assertTrue(snapshot.getMatchNanos() > 0);
+
+        m = new Compiler(options).compile("[ab]*a[ab]{3}");
+        assertTrue(m.test("abbabab"));
+        assertTrue(m.getStatistics().getPeakNfaStates() > 1);
+
+        ObjectName name = statistics.register();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(5L, server.getAttribute(name, "Calls"));
+        server.invoke(name, "reset", null, null);
+        assertEquals(0, statistics.getCalls());
+        assertEquals(snapshot.getCompileNanos(), statistics.getCompileNanos());
+        statistics.unregister();
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void serialization() throws Exception {
+        Options options = new Options();
+        options.setFullDfa(true);
+        options.setUtf8(true);
+        String[] regexes = {"(\\d{1,3}\\.){3}\\d{1,3}", "user=(\\w+)", "[^abc]+x"};
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String regex : regexes) {
+            new Compiler(options).compile(regex).writeTo(out);
+        }
+        new Compiler().compile("(cat|dog)s?").writeTo(out);
+
+        Path file = Files.createTempFile("rules", ".bin");
+        try {
+            Files.write(file, out.toByteArray());
+            List<Matcher> loaded;
+            try (FileChannel channel = FileChannel.open(file)) {
+                loaded = Matcher.load(channel);
+            }
+            assertEquals(4, loaded.size());
+
+            Matcher ip = loaded.get(0);
+            assertNotNull(ip.getDenseDfa());
+            assertTrue(ip.test("10.0.0.255"));
+            assertFalse(ip.test("10.0.0"));
+            assertEquals(new Match(3, 13), span(ip.find("ip=10.0.0.255;")));
+            assertTrue(ip.test("192.168.1.1".getBytes(StandardCharsets.UTF_8)));
+
+            Match user = loaded.get(1).find("id=7 user=j\u00f6rg");
+            assertEquals("j\u00f6rg", user.group("id=7 user=j\u00f6rg", 1));
+            assertTrue(loaded.get(2).test("dex"));
+            assertFalse(loaded.get(2).test("ax"));
+            assertTrue(loaded.get(3).test("dogs"));
+            assertNull(loaded.get(3).getDenseDfa());
+        } finally {
+            Files.delete(file);
+        }
+
+        byte[] bytes = out.toByteArray();
+        bytes[7] = 99;
+        try {
+            Matcher.readFrom(ByteBuffer.wrap(bytes));
+            fail();
+        } catch (StreamCorruptedException e) {
+            assertEquals("Unsupported format version 99", e.getMessage());
+        }
+        try {
+            Matcher.readFrom(ByteBuffer.wrap(out.toByteArray(), 0, 40));
+            fail();
+        } catch (StreamCorruptedException e) {
+            // expected
+        }
+    }
 }